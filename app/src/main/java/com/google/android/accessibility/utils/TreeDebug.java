@@ -28,12 +28,19 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import android.view.accessibility.AccessibilityWindowInfo;
 import com.google.android.accessibility.utils.traversal.OrderedTraversalStrategy;
 import com.jwlilly.accessibilityinspector.AccessibilityInspector;
-
-import java.text.DecimalFormat;
-import java.util.HashSet;
+import com.jwlilly.accessibilityinspector.capture.CaptureContext;
+import com.jwlilly.accessibilityinspector.capture.NodeIdAssigner;
+import com.jwlilly.accessibilityinspector.capture.NodeJsonEncoder;
+import com.jwlilly.accessibilityinspector.capture.NodeSnapshot;
+import com.jwlilly.accessibilityinspector.capture.WindowCaptureEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
-import java.util.Random;
+import java.util.concurrent.Future;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.json.JSONArray;
@@ -42,157 +49,198 @@ import org.json.JSONObject;
 
 /** Util class to help debug Node trees. */
 public class TreeDebug {
-  private static AccessibilityInspector inspector = null;
   public static final String TAG = "TreeDebug";
-  /** Logs the layout hierarchy of node trees for given list of windows. */
-  public static void logNodeTrees(List<AccessibilityWindowInfo> windows, AccessibilityInspector receiver) {
-    inspector = receiver;
-    JSONObject parentObject = new JSONObject();
-    if (windows == null) {
-      return;
-    }
-    //Log.v(TAG, "------------Node tree------------");
-    JSONArray windowArray = new JSONArray();
-    for (AccessibilityWindowInfo window : windows) {
-      JSONObject windowObject = new JSONObject();
-      if (window == null || !window.isActive()) {
-        continue;
-      }
-
-
-      // TODO: Filter and print useful window information.
-//      Log.v(TAG, "Window: " + window);
-      JSONObject metadata = new JSONObject();
-      try {
-
-        metadata.put("windowId", window.getId());
-        metadata.put("role", "Window");
-        windowObject.put("name", "Window");
-        metadata.put("title", window.getTitle());
-
-      } catch (JSONException e) {
-        Log.e("JSON Error", e.getMessage());
-      }
-      AccessibilityNodeInfo rootInfo = inspector.getRootInActiveWindow();
-      AccessibilityNodeInfoCompat root = AccessibilityNodeInfoCompat.wrap(rootInfo);
-      logNodeTree(root, windowObject);
-      try {
-        Rect rect = new Rect();
-        root.getBoundsInScreen(rect);
-        metadata.put("x1", rect.left);
-        metadata.put("y1", rect.top);
-        metadata.put("x2", rect.right);
-        metadata.put("y2", rect.bottom);
-        windowObject.put("id", root.hashCode());
-        windowObject.put("metadata", metadata);
-        AccessibilityNodeInfoUtils.recycleNodes(root);
-      } catch (JSONException e) {
-        Log.e("AccessibilityInspector", e.getMessage());
-      }
-      String title = "";
-      if(window.getTitle() != null) {
-        title = window.getTitle().toString();
-      }
-
-      boolean isEmpty = false;
-      try {
-        isEmpty = windowObject.getJSONArray("children").length() == 0;
-        if(!isEmpty) {
-          JSONArray children = windowObject.getJSONArray("children");
-          if(children.get(0) != null) {
-            JSONObject object = children.getJSONObject(0);
-            if(object.has("paneTitle")) {
-              isEmpty = object.getString("paneTitle").equals("Status bar") || object.getString("paneTitle").equals("Notification shade.");
-            }
-          }
+  /**
+   * Streams the layout hierarchy of node trees for given list of windows into {@code out} as UTF-8
+   * JSON. Each node is written as soon as it is visited, so the receiving end of the stream sees
+   * data while traversal is still running. The output is an object whose {@code children} are the
+   * captured windows, each holding its node tree.
+   *
+   * <p>The top-most window is streamed live on the calling thread while the other windows are
+   * traversed concurrently on the receiver's {@link WindowCaptureEngine}; their JSON is buffered
+   * and written out in window-layer order once the top-most window is done.
+   *
+   * <p>If {@code importantOnly} is set, nodes that are not important for accessibility are left out
+   * and their children take their place, which is how the framework reports the tree to services
+   * that do not ask for views that are not important.
+   *
+   * <p>Throws {@link InterruptedException} if the calling thread is interrupted while it waits for
+   * the other windows, leaving the output incomplete.
+   */
+  public static void streamNodeTrees(
+      List<AccessibilityWindowInfo> windows,
+      AccessibilityInspector receiver,
+      OutputStream out,
+      boolean importantOnly)
+      throws IOException, InterruptedException {
+    CaptureContext context = CaptureContext.create(receiver.getContext());
+    List<AccessibilityWindowInfo> ordered = WindowCaptureEngine.inLayerOrder(windows);
+    List<Future<ByteArrayOutputStream>> buffered = Collections.emptyList();
+    if (ordered.size() > 1) {
+      buffered =
+          receiver
+              .getCaptureEngine()
+              .submit(
+                  ordered.subList(1, ordered.size()),
+                  (window, root) -> bufferWindow(window, root, context, importantOnly));
+    }
+    NodeJsonEncoder encoder = new NodeJsonEncoder(context, out);
+    try {
+      encoder.beginDocument();
+      if (!ordered.isEmpty()) {
+        try {
+          WindowCaptureEngine.captureWindow(
+              ordered.get(0),
+              (window, root) -> {
+                if (isCapturedWindow(window, root)) {
+                  encodeWindow(window, root, encoder, importantOnly);
+                }
+                return null;
+              });
+        } catch (IOException e) {
+          throw e;
+        } catch (Exception e) {
+          Log.e(TAG, "failed to stream window", e);
         }
-      } catch (JSONException e) {
-        isEmpty = true;
       }
-
-      if(!title.equals("Navigation bar") && !isEmpty){
-        windowArray.put(windowObject);
+      for (Future<ByteArrayOutputStream> future : buffered) {
+        ByteArrayOutputStream windowJson = WindowCaptureEngine.await(future);
+        if (windowJson != null) {
+          encoder.raw(windowJson);
+        }
       }
-    }
-    try {
-      parentObject.put("children", windowArray);
-//      String json = parentObject.toString();
-//      for(int i = 0; i < json.length(); i += 1024) {
-//        Log.d("DebugJSON", json.substring(i, Math.min(i + 1024, json.length())));
-//      }
-      receiver.sendJSON(parentObject);
-      parentObject = new JSONObject();
-    } catch (JSONException e) {
-      Log.e("JSON Error", e.getMessage());
+      encoder.endDocument();
+      encoder.flush();
+    } finally {
+      WindowCaptureEngine.cancelAll(buffered);
+      encoder.close();
     }
   }
 
-  /** Logs the layout hierarchy of node tree for using the input node as the root. */
-  public static void logNodeTree(@Nullable AccessibilityNodeInfoCompat node, JSONObject windowObject) {
-    if (node == null) {
-      return;
+  /** Encodes a single window into a buffer so it can be written out in layer order later. */
+  private static @Nullable ByteArrayOutputStream bufferWindow(
+      AccessibilityWindowInfo window,
+      AccessibilityNodeInfoCompat root,
+      CaptureContext context,
+      boolean importantOnly)
+      throws IOException {
+    if (!isCapturedWindow(window, root)) {
+      return null;
     }
-
-    HashSet<AccessibilityNodeInfoCompat> seen = new HashSet<>();
-    HashSet<AccessibilityNodeInfoCompat> seenJson = new HashSet<>();
-    AccessibilityNodeInfoCompat compatNode = AccessibilityNodeInfoCompat.obtain(node);
-    //logNodeTree(compatNode, "", seen);
-    logNodeTreeJson(compatNode, windowObject, seenJson);
-    for (AccessibilityNodeInfoCompat n : seen) {
-      n.recycle();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    NodeJsonEncoder encoder = new NodeJsonEncoder(context, buffer);
+    try {
+      encodeWindow(window, root, encoder, importantOnly);
+    } finally {
+      encoder.close();
     }
+    return buffer;
   }
 
-  private static void logNodeTree(
-      AccessibilityNodeInfoCompat node, String indent, HashSet<AccessibilityNodeInfoCompat> seen) {
-    if (!seen.add(node)) {
-//      Log.v(TAG, "Cycle: " + node.hashCode());
-      return;
+  /**
+   * Returns whether a window is kept in captures. The navigation bar, the status bar, the
+   * notification shade and windows without children are left out.
+   */
+  public static boolean isCapturedWindow(
+      AccessibilityWindowInfo window, AccessibilityNodeInfoCompat root) {
+    if (window.getTitle() != null && window.getTitle().toString().equals("Navigation bar")) {
+      return false;
     }
-    // Include the hash code as a "poor man's" id, knowing that it
-    // might not always be unique.
-//    Log.v(TAG, indent + "(" + node.hashCode() + ")" + nodeDebugDescription(node));
-
-    indent += "  ";
-    int childCount = node.getChildCount();
-
+    int childCount = root.getChildCount();
     for (int i = 0; i < childCount; ++i) {
-      AccessibilityNodeInfoCompat child = node.getChild(i);
+      AccessibilityNodeInfoCompat child = root.getChild(i);
       if (child == null) {
-//        Log.v(TAG, indent + "Couldn't get child " + i);
         continue;
       }
-
-      logNodeTree(child, indent, seen);
+      CharSequence paneTitle = child.getPaneTitle();
+      child.recycle();
+      if (paneTitle == null) {
+        return true;
+      }
+      String title = paneTitle.toString();
+      return !title.equals("Status bar") && !title.equals("Notification shade.");
     }
+    return false;
   }
-  private static void logNodeTreeJson(
-          AccessibilityNodeInfoCompat node, JSONObject parent, HashSet<AccessibilityNodeInfoCompat> seen) {
-    if (!seen.add(node)) {
-//      Log.v(TAG, "Cycle: " + node.hashCode());
-      return;
+
+  private static void encodeWindow(
+      AccessibilityWindowInfo window,
+      AccessibilityNodeInfoCompat root,
+      NodeJsonEncoder encoder,
+      boolean importantOnly)
+      throws IOException {
+    Rect bounds = new Rect();
+    root.getBoundsInScreen(bounds);
+    encoder.beginObject();
+    NodeIdAssigner ids = new NodeIdAssigner(window.getId());
+    encoder.writeWindow(window.getId(), window.getTitle(), bounds, ids.rootId());
+    encodeNodeTree(root, ids.rootId(), encoder, ids, new ArrayList<>(), bounds, importantOnly);
+    encoder.endObject();
+  }
+
+  /**
+   * Writes the children of {@code node} into the object that is currently open in {@code encoder}.
+   * Only the nodes on the path from the window root are kept in {@code ancestors}, which is enough
+   * to break cycles without holding on to the whole tree, and {@code bounds} is reused as scratch
+   * space for every node.
+   */
+  private static void encodeNodeTree(
+      AccessibilityNodeInfoCompat node,
+      long nodeId,
+      NodeJsonEncoder encoder,
+      NodeIdAssigner ids,
+      List<AccessibilityNodeInfoCompat> ancestors,
+      Rect bounds,
+      boolean importantOnly)
+      throws IOException {
+    if (encodeChildren(node, nodeId, encoder, ids, ancestors, bounds, importantOnly, false)) {
+      encoder.endArray();
     }
-    JSONArray childArray = new JSONArray();
-    // Include the hash code as a "poor man's" id, knowing that it
-    // might not always be unique.
+  }
 
+  /**
+   * Writes the children of {@code node} into the children array of the object that is open in
+   * {@code encoder}, opening the array first unless {@code open} is set. Children that are left out
+   * as not important are replaced by their own children. Returns whether the array is open.
+   */
+  private static boolean encodeChildren(
+      AccessibilityNodeInfoCompat node,
+      long nodeId,
+      NodeJsonEncoder encoder,
+      NodeIdAssigner ids,
+      List<AccessibilityNodeInfoCompat> ancestors,
+      Rect bounds,
+      boolean importantOnly,
+      boolean open)
+      throws IOException {
+    if (ancestors.contains(node)) {
+      return open;
+    }
+    ancestors.add(node);
     int childCount = node.getChildCount();
     for (int i = 0; i < childCount; ++i) {
-      JSONObject childObject  = new JSONObject();
       AccessibilityNodeInfoCompat child = node.getChild(i);
       if (child == null) {
         continue;
       }
-      childArray.put(nodeDebugDescriptionJson(child, childObject));
-      logNodeTreeJson(child, childObject, seen);
-    }
-    try{
-      if(childArray.length() > 0) {
-        parent.put("children", childArray);
+      NodeSnapshot snapshot = NodeSnapshot.create(child, bounds);
+      long childId = ids.assign(snapshot, nodeId, i);
+      if (importantOnly && !snapshot.hasProperty(NodeSnapshot.PROPERTY_IMPORTANT)) {
+        open = encodeChildren(child, childId, encoder, ids, ancestors, bounds, true, open);
+      } else {
+        if (!open) {
+          encoder.beginChildren();
+          open = true;
+        }
+        encoder.beginObject();
+        encoder.writeNode(snapshot, childId);
+        encodeNodeTree(child, childId, encoder, ids, ancestors, bounds, importantOnly);
+        encoder.endObject();
       }
-    } catch (JSONException e) {
-      Log.e("JSON Error", e.getMessage());
+      child.recycle();
     }
+    ancestors.remove(ancestors.size() - 1);
+    return open;
   }
 
   private static void appendSimpleName(StringBuilder sb, CharSequence fullName) {
@@ -204,15 +252,6 @@ public class TreeDebug {
     sb.append(fullName, dotIndex, fullName.length());
   }
 
-  private static String getSimpleName(CharSequence fullName) {
-    int dotIndex = TextUtils.lastIndexOf(fullName, '.');
-    if (dotIndex < 0) {
-      dotIndex = 0;
-    }
-
-    return fullName.subSequence(dotIndex, fullName.length()).toString().replace(".", "");
-  }
-
   /** Gets a description of the properties of a node. */
   public static CharSequence nodeDebugDescription(AccessibilityNodeInfoCompat node) {
     StringBuilder sb = new StringBuilder();
@@ -385,229 +424,127 @@ public class TreeDebug {
     return sb.toString().replace("\n", "").replace("\r", "");
   }
 
-  /** Gets a description of the properties of a node. */
-  public static JSONObject nodeDebugDescriptionJson(AccessibilityNodeInfoCompat node, JSONObject childObject) {
+  /**
+   * Gets a description of the properties of a node from a snapshot of the node. {@code id} is the
+   * stable id assigned by a {@link NodeIdAssigner}, and sizes in dp are converted with the density
+   * in {@code context}.
+   */
+  public static JSONObject nodeDebugDescriptionJson(
+      NodeSnapshot node, long id, CaptureContext context, JSONObject childObject) {
     try {
-      Random rand = new Random();
       JSONObject jsonObject = childObject;
       JSONObject metadata = new JSONObject();
-      jsonObject.put("id", rand.nextInt());
-      metadata.put("hashCode", node.hashCode());
-      //jsonObject.put("resourceId", node.getViewIdResourceName());
-      if (node.getClassName() != null) {
-        if (node.getRoleDescription() != null) {
-          metadata.put("roleDescription", node.getRoleDescription());
-        }
-        metadata.put("role", getSimpleName(node.getClassName()));
-        jsonObject.put("name", getSimpleName(node.getClassName()));
-      } else {
-        metadata.put("role", "??");
-        jsonObject.put("name", "??");
+      jsonObject.put("id", id);
+      metadata.put("hashCode", node.hashCodeValue());
+      if (node.viewIdResourceName() != null) {
+        metadata.put("resourceId", node.viewIdResourceName());
       }
+      if (node.roleDescription() != null) {
+        metadata.put("roleDescription", node.roleDescription());
+      }
+      metadata.put("role", node.role());
+      jsonObject.put("name", node.role());
 
-      if(node.isContentInvalid()) {
+      if (node.hasProperty(NodeSnapshot.PROPERTY_CONTENT_INVALID)) {
         metadata.put("contentInvalid", true);
       }
 
-      if(node.getError() != null) {
-        metadata.put("errorMessage", node.getError());
+      if (node.error() != null) {
+        metadata.put("errorMessage", node.error());
       }
 
-      if(node.getTooltipText() != null) {
-        metadata.put("tooltip", node.getTooltipText());
+      if (node.tooltip() != null) {
+        metadata.put("tooltip", node.tooltip());
       }
 
-      if (!node.isVisibleToUser()) {
+      if (!node.hasProperty(NodeSnapshot.PROPERTY_VISIBLE)) {
         metadata.put("visibility", "invisible");
       }
 
+      metadata.put(
+          "importantForAccessibility", node.hasProperty(NodeSnapshot.PROPERTY_IMPORTANT));
 
-      metadata.put("importantForAccessibility", node.isImportantForAccessibility());
-
-
-      Rect rect = new Rect();
-      node.getBoundsInScreen(rect);
-      metadata.put("x1", rect.left);
-      metadata.put("y1", rect.top);
-      metadata.put("x2", rect.right);
-      metadata.put("y2", rect.bottom);
-
-
+      metadata.put("x1", node.left());
+      metadata.put("y1", node.top());
+      metadata.put("x2", node.right());
+      metadata.put("y2", node.bottom());
 
-      node.getBoundsInScreen(rect);
+      metadata.put("scaledWidth", context.formatDp(node.width()));
+      metadata.put("scaledHeight", context.formatDp(node.height()));
 
-      int width = rect.right - rect.left;
-      int height = rect.bottom - rect.top;
+      metadata.put("dpScaleFactor", context.dpScaleFactor());
 
-
-      float scaledWidth = convertPixelsToDp(width, inspector.getContext());
-
-      float scaledHeight = convertPixelsToDp(height, inspector.getContext());
-
-      DecimalFormat decimalFormat = new DecimalFormat("#0.00");
-
-      metadata.put("scaledWidth", decimalFormat.format(scaledWidth));
-      metadata.put("scaledHeight", decimalFormat.format(scaledHeight));
-
-      metadata.put("dpScaleFactor", convertPixelsToDp(1, inspector.getContext()));
-
-      if (!TextUtils.isEmpty(node.getPaneTitle())) {
-        metadata.put("paneTitle", node.getPaneTitle());
+      if (node.paneTitle() != null) {
+        metadata.put("paneTitle", node.paneTitle());
       }
-      List<AccessibilityNodeInfoUtils.ClickableString> clickableStrings = AccessibilityNodeInfoUtils.getNodeClickableStrings(node);
-      if(clickableStrings.size() > 0) {
-        JSONArray jsonArray = new JSONArray();
-        for(AccessibilityNodeInfoUtils.ClickableString clickableString : clickableStrings) {
-          jsonArray.put(clickableString.string());
-        }
-        metadata.put("links", jsonArray);
-      }
-      List<AccessibilityNodeInfoUtils.LocaleString> localeStrings = AccessibilityNodeInfoUtils.getNodeLocaleStrings(node);
-      if(localeStrings.size() > 0) {
-        JSONArray jsonArray = new JSONArray();
-        for(AccessibilityNodeInfoUtils.LocaleString localeString : localeStrings) {
-          Log.d("TAG", "Locale " + localeString.localeSpan());
-          jsonArray.put(localeString.string() + " - " + Objects.requireNonNull(localeString.localeSpan().getLocale()).toLanguageTag());
-        }
-        metadata.put("locales", jsonArray);
+      if (!node.links().isEmpty()) {
+        metadata.put("links", new JSONArray(node.links()));
       }
-      @Nullable CharSequence nodeText = AccessibilityNodeInfoUtils.getText(node);
-      if (nodeText != null) {
-
-        metadata.put("text", nodeText.toString().trim());
+      if (!node.locales().isEmpty()) {
+        metadata.put("locales", new JSONArray(node.locales()));
       }
-      if(node.getLabeledBy() != null) {
-        @Nullable CharSequence labeledByText = AccessibilityNodeInfoUtils.getText(node.getLabeledBy());
-        if(node.getLabeledBy().getContentDescription() != null) {
-          String labeledByContent = node.getLabeledBy().getContentDescription().toString().trim();
-          if (labeledByContent.length() > 0) {
-            labeledByText = labeledByContent;
-          }
-        }
-        metadata.put("labeledBy", labeledByText);
-        metadata.put("labeledById", node.getLabeledBy().hashCode());
+      if (node.text() != null) {
+        metadata.put("text", node.text());
       }
-      if (node.getHintText() != null) {
-        metadata.put("hint", node.getHintText().toString().trim());
+      if (node.hasProperty(NodeSnapshot.PROPERTY_HAS_LABELED_BY)) {
+        metadata.put("labeledBy", node.labeledByText());
+        metadata.put("labeledById", node.labeledById());
       }
-      if (node.getContentDescription() != null) {
-        metadata.put("content", node.getContentDescription().toString().trim());
+      if (node.hint() != null) {
+        metadata.put("hint", node.hint());
       }
-
-      if (AccessibilityNodeInfoUtils.getState(node) != null) {
-        if(node.getStateDescription() != null) {
-          metadata.put("stateDescription", node.getStateDescription().toString().trim());
-        } else {
-          metadata.put("state", AccessibilityNodeInfoUtils.getState(node).toString().trim());
-        }
+      if (node.contentDescription() != null) {
+        metadata.put("content", node.contentDescription());
+      }
+      if (node.stateDescription() != null) {
+        metadata.put("stateDescription", node.stateDescription());
       }
       // Views that inherit Checkable can have its own state description and the log already covered
       // by above SD, but for some views that are not Checkable but have checked status, like
       // overriding by AccessibilityDelegate, we should also log it.
-      if (node.isCheckable()) {
-        if (node.isChecked()) {
+      if (node.hasProperty(NodeSnapshot.PROPERTY_CHECKABLE)) {
+        if (node.hasProperty(NodeSnapshot.PROPERTY_CHECKED)) {
           metadata.put("checkable", "checked");
         } else {
           metadata.put("checkable", "not checked");
         }
-
       }
 
-      int actions = node.getActions();
-      if (actions != 0) {
-        JSONArray stringArray = new JSONArray();
-        List<AccessibilityNodeInfoCompat.AccessibilityActionCompat> actionList = node.getActionList();
-        for(int i = 0; i < actionList.size(); i++) {
-          AccessibilityNodeInfoCompat.AccessibilityActionCompat action = actionList.get(i);
-          String actionText = "";
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_FOCUS) {
-            actionText = "focus";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_ACCESSIBILITY_FOCUS) {
-            actionText = "a11y focus";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_CLEAR_ACCESSIBILITY_FOCUS) {
-            actionText = "clear a11y focus";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_SCROLL_BACKWARD) {
-            actionText = "scroll backward";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_SCROLL_FORWARD) {
-            actionText = "scroll forward";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_CLICK) {
-            actionText = "click";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_LONG_CLICK) {
-            actionText = "long click";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_EXPAND) {
-            actionText = "expand";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_COLLAPSE) {
-            actionText = "collapse";
-          }
-          if(action.getLabel() != null && action.getLabel().length() > 0) {
-            actionText = action.getLabel() + " (custom)";
-          }
-          if(actionText.length() > 0) {
-            stringArray.put(actionText);
-          }
+      JSONArray stringArray = new JSONArray();
+      for (int i = 0; i < NodeSnapshot.ACTION_NAMES.length; i++) {
+        if (node.hasAction(1 << i)) {
+          stringArray.put(NodeSnapshot.ACTION_NAMES[i]);
         }
-        if (stringArray.length() > 0) {
-          metadata.put("actions", stringArray);
-        }
-      }
-      JSONArray properties = new JSONArray();
-      if (node.isFocusable()) {
-        properties.put("focusable");
-      }
-      if (node.isScreenReaderFocusable()) {
-        properties.put("screen reader focusable");
-      }
-
-      if (node.isFocused()) {
-        properties.put("focused");
-      }
-
-      if (node.isSelected()) {
-        properties.put("selected");
-      }
-
-      if (node.isScrollable()) {
-        properties.put("scrollable");
       }
-
-      if (node.isClickable()) {
-        properties.put("clickable");
+      for (String customAction : node.customActions()) {
+        stringArray.put(customAction);
       }
-
-      if (node.isLongClickable()) {
-        properties.put("long clickable");
+      if (stringArray.length() > 0) {
+        metadata.put("actions", stringArray);
       }
 
-      if (node.isAccessibilityFocused()) {
-        properties.put("accessibility focused");
-      }
-      if (AccessibilityNodeInfoUtils.supportsTextLocation(node)) {
-        //properties.put("supportsTextLocation");
+      JSONArray properties = new JSONArray();
+      for (int i = 0; i < NodeSnapshot.LISTED_PROPERTIES.length; i++) {
+        if (node.hasProperty(NodeSnapshot.LISTED_PROPERTIES[i])) {
+          properties.put(NodeSnapshot.LISTED_PROPERTY_NAMES[i]);
+        }
       }
-      if (!node.isEnabled()) {
+      if (!node.hasProperty(NodeSnapshot.PROPERTY_ENABLED)) {
         properties.put("disabled");
       }
       if(properties.length() > 0) {
         metadata.put("properties", properties);
       }
 
-      if (node.getCollectionInfo() != null) {
-        metadata.put("collectionInfo", "Rows: " + node.getCollectionInfo().getRowCount() + ", Columns: " + node.getCollectionInfo().getColumnCount());
+      if (node.isCollection()) {
+        metadata.put("collectionInfo", "Rows: " + node.collectionRowCount() + ", Columns: " + node.collectionColumnCount());
       }
 
-      if (AccessibilityNodeInfoUtils.isHeading(node)) {
+      if (node.hasProperty(NodeSnapshot.PROPERTY_HEADING)) {
         metadata.put("heading", true);
       }
-      if (node.getCollectionItemInfo() != null) {
-        metadata.put("collectionItemInfo", "Row: " + node.getCollectionItemInfo().getRowIndex() + ", Column: " + node.getCollectionItemInfo().getColumnIndex());
+      if (node.isCollectionItem()) {
+        metadata.put("collectionItemInfo", "Row: " + node.collectionItemRowIndex() + ", Column: " + node.collectionItemColumnIndex());
       }
       jsonObject.put("metadata", metadata);
       return jsonObject;
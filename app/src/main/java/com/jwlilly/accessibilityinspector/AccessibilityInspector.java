@@ -6,20 +6,33 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 import android.view.accessibility.AccessibilityWindowInfo;
 import androidx.annotation.NonNull;
-import androidx.annotation.RequiresApi;
+import androidx.annotation.Nullable;
 import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
 
 import com.google.android.accessibility.utils.TreeDebug;
+import com.jwlilly.accessibilityinspector.capture.CaptureContext;
+import com.jwlilly.accessibilityinspector.capture.CaptureCoordinator;
+import com.jwlilly.accessibilityinspector.capture.CaptureExecutor;
+import com.jwlilly.accessibilityinspector.capture.CapturedTree;
+import com.jwlilly.accessibilityinspector.capture.DeltaTracker;
+import com.jwlilly.accessibilityinspector.capture.EncodedTree;
+import com.jwlilly.accessibilityinspector.capture.PreCaptureCache;
+import com.jwlilly.accessibilityinspector.capture.TreeMirror;
+import com.jwlilly.accessibilityinspector.capture.WindowCaptureEngine;
+import org.json.JSONException;
 import org.json.JSONObject;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.File;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.concurrent.Executor;
@@ -28,11 +41,41 @@ import java.util.zip.GZIPOutputStream;
 
 public class AccessibilityInspector extends AccessibilityService implements Observer {
     private final String LOG_TAG = "AccessibilityInspector";
-    private AccessibilityListener captureListener;
-
-    private AccessibilityListener importantListener;
+    /**
+     * Broadcast actions that trigger a command from outside the socket layer, for example with
+     * {@code adb shell am broadcast -a A11yInspector}. Intent extras become command properties.
+     */
+    private static final Map<String, String> BROADCAST_COMMANDS = new HashMap<>();
+    static {
+        BROADCAST_COMMANDS.put("A11yInspector", "capture");
+        BROADCAST_COMMANDS.put("A11yInspectorImportant", "captureNotImportant");
+        BROADCAST_COMMANDS.put("A11yInspectorStream", "captureStream");
+        BROADCAST_COMMANDS.put("A11yInspectorMirror", "mirror");
+        BROADCAST_COMMANDS.put("A11yInspectorPreCapture", "preCapture");
+        BROADCAST_COMMANDS.put("A11yInspectorRecorder", "recorder");
+    }
+    private static final String[] COMMANDS = {
+        "capture", "captureNotImportant", "captureStream", "captureDelta", "mirror", "preCapture",
+        "subscribe", "unsubscribe", "resume", "recorder", "dumpRecorder"
+    };
+    private AccessibilityListener commandListener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
     public AccessibilityInspector _this = this;
-    private JSONObject jsonObject;
+    private WindowCaptureEngine captureEngine;
+    private CaptureExecutor captureExecutor;
+    private CaptureCoordinator captureCoordinator;
+    private final DeltaTracker deltaTracker = new DeltaTracker();
+    private EventChannel eventChannel;
+    private FlightRecorder flightRecorder;
+    private final EventSubscriptions eventSubscriptions = new EventSubscriptions();
+    private final CommandRouter.DisconnectListener disconnectListener = clientId -> {
+        onClientDisconnected(clientId);
+        if (eventChannel != null) {
+            eventChannel.clientDisconnected(clientId);
+        }
+    };
+    private volatile TreeMirror treeMirror;
+    private volatile PreCaptureCache preCaptureCache;
 
 
     private final int allFlags = AccessibilityServiceInfo.DEFAULT
@@ -44,6 +87,22 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (treeMirror != null) {
+            treeMirror.onAccessibilityEvent(event);
+        }
+        if (preCaptureCache != null && (event.getEventType() & TreeMirror.EVENT_TYPES) != 0) {
+            preCaptureCache.onEvent();
+        }
+        if (eventChannel != null && !eventSubscriptions.isEmpty()) {
+            try {
+                Map<String, JSONObject> subscribed = eventSubscriptions.encode(event);
+                if (!subscribed.isEmpty()) {
+                    eventChannel.post(EventSubscriptions.typeName(event.getEventType()), subscribed);
+                }
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
         if(event.getEventType() == AccessibilityEvent.TYPE_ANNOUNCEMENT) {
             List<CharSequence> list = event.getText();
             for(CharSequence charSequence : list) {
@@ -84,18 +143,35 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
     @Override
     public void onServiceConnected() {
         super.onServiceConnected();
-        captureListener = new AccessibilityListener();
-        registerReceiver(captureListener, new IntentFilter("A11yInspector"));
-        importantListener = new AccessibilityListener();
-        registerReceiver(importantListener, new IntentFilter("A11yInspectorImportant"));
+        captureEngine = new WindowCaptureEngine();
+        captureExecutor = new CaptureExecutor();
+        captureCoordinator = new CaptureCoordinator(captureExecutor, new CaptureCoordinator.Delivery() {
+            @Override
+            public void deliver(String mode, @Nullable String clientId, EncodedTree tree) {
+                sendTree(mode, clientId, tree);
+            }
+
+            @Override
+            public void fail(String mode, @Nullable String clientId, Exception e) {
+                sendCaptureFailure(mode, clientId, e);
+            }
+        });
+        flightRecorder = new FlightRecorder(new File(getFilesDir(), "recorder"));
+        eventChannel = new EventChannel(flightRecorder);
+        registerCommands();
+        CommandRouter.getInstance().addDisconnectListener(disconnectListener);
+        commandListener = new AccessibilityListener();
+        IntentFilter filter = new IntentFilter();
+        for (String action : BROADCAST_COMMANDS.keySet()) {
+            filter.addAction(action);
+        }
+        registerReceiver(commandListener, filter);
         AccessibilityServiceInfo info = new AccessibilityServiceInfo();
         info.notificationTimeout = 100;
-        info.flags =
-                AccessibilityServiceInfo.DEFAULT
-                | AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS
-                | AccessibilityServiceInfo.FEEDBACK_GENERIC
-                | AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS
-                | AccessibilityServiceInfo.CAPABILITY_CAN_RETRIEVE_WINDOW_CONTENT;
+        // Nodes that are not important for accessibility are always retrieved and left out of
+        // the important-only view afterwards, so that switching between views does not change
+        // the service flags and invalidate the framework's node cache.
+        info.flags = allFlags;
         info.eventTypes = AccessibilityEvent.TYPE_ANNOUNCEMENT;
         this.setServiceInfo(info);
     }
@@ -104,10 +180,37 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         return this.getApplicationContext();
     }
 
+    public WindowCaptureEngine getCaptureEngine() {
+        return captureEngine;
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
-        unregisterReceiver(captureListener);
-        unregisterReceiver(importantListener);
+        unregisterReceiver(commandListener);
+        for (String command : COMMANDS) {
+            CommandRouter.getInstance().unregister(command);
+        }
+        CommandRouter.getInstance().removeDisconnectListener(disconnectListener);
+        if (treeMirror != null) {
+            treeMirror.stop();
+            treeMirror = null;
+        }
+        if (preCaptureCache != null) {
+            preCaptureCache.stop();
+            preCaptureCache = null;
+        }
+        if (captureExecutor != null) {
+            captureExecutor.shutdown();
+        }
+        if (captureEngine != null) {
+            captureEngine.shutdown();
+        }
+        if (eventChannel != null) {
+            eventChannel.shutdown();
+        }
+        if (flightRecorder != null) {
+            flightRecorder.shutdown();
+        }
         return super.onUnbind(intent);
     }
 
@@ -116,16 +219,105 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
 
     }
 
+    /** Registers the handlers for the commands that clients send to the socket service. */
+    private void registerCommands() {
+        CommandRouter router = CommandRouter.getInstance();
+        router.register("capture", (clientId, command) ->
+                captureCoordinator.request("capture", clientId, () -> {
+                    PreCaptureCache cache = preCaptureCache;
+                    EncodedTree cached = cache != null ? cache.get() : null;
+                    return cached != null ? cached : captureTree(true);
+                }));
+        router.register("captureNotImportant", (clientId, command) ->
+                captureCoordinator.request("captureNotImportant", clientId, () -> captureTree(false)));
+        router.register("captureStream", (clientId, command) ->
+                captureExecutor.submit(
+                        clientId != null ? "captureStream:" + clientId : "captureStream", () -> {
+                            startStreamingCapture(clientId);
+                            return null;
+                        }));
+        router.register("captureDelta", (clientId, command) -> {
+            if (clientId == null) {
+                return;
+            }
+            long baseVersion = command.optLong("base", -1);
+            captureExecutor.submit("captureDelta:" + clientId, () -> {
+                startDeltaCapture(clientId, baseVersion);
+                return null;
+            });
+        });
+        // The mirror and the pre-capture cache schedule work on the main looper, so they are
+        // switched on and off from there.
+        router.register("mirror", (clientId, command) -> {
+            boolean enabled = command.optBoolean("enabled", true);
+            mainHandler.post(() -> setMirrorEnabled(enabled));
+        });
+        router.register("preCapture", (clientId, command) -> {
+            boolean enabled = command.optBoolean("enabled", true);
+            long quietPeriodMs = command.optLong("quietMs", PreCaptureCache.DEFAULT_QUIET_PERIOD_MS);
+            mainHandler.post(() -> setPreCaptureEnabled(enabled, quietPeriodMs));
+        });
+        router.register("subscribe", (clientId, command) -> {
+            if (clientId == null) {
+                return;
+            }
+            eventSubscriptions.subscribe(clientId, command);
+            mainHandler.post(this::updateEventTypes);
+        });
+        router.register("unsubscribe", (clientId, command) -> {
+            if (clientId != null) {
+                unsubscribeEvents(clientId);
+            }
+        });
+        router.register("resume", (clientId, command) -> {
+            if (clientId != null && eventChannel != null) {
+                eventChannel.resume(clientId, command.optLong("fromSeq", 0));
+            }
+        });
+        router.register("recorder", (clientId, command) ->
+                flightRecorder.setEnabled(command.optBoolean("enabled", true)));
+        router.register("dumpRecorder", (clientId, command) -> {
+            if (clientId == null) {
+                return;
+            }
+            long from = Math.max(0, command.optLong("from", 0));
+            long to = command.optLong("to", Long.MAX_VALUE);
+            flightRecorder.dump(clientId, from, to);
+        });
+    }
+
+    /** Drops the event subscription and the delta capture base of a client that disconnected. */
+    private void onClientDisconnected(String clientId) {
+        unsubscribeEvents(clientId);
+        deltaTracker.forget(clientId);
+    }
+
+    /** Drops the event subscription of a client that disconnected or unsubscribed. */
+    private void unsubscribeEvents(String clientId) {
+        eventSubscriptions.unsubscribe(clientId);
+        mainHandler.post(this::updateEventTypes);
+    }
+
+    /** Turns broadcasts from outside the app into commands. */
     private class AccessibilityListener extends BroadcastReceiver {
-        @RequiresApi(api = Build.VERSION_CODES.R)
         @Override
         public void onReceive(Context context, Intent intent) {
-            if(intent.getAction().equalsIgnoreCase("A11yInspector")) {
-                hideNotImportant();
-                startCapture();
-            } else if(intent.getAction().equalsIgnoreCase("A11yInspectorImportant")) {
-                showNotImportant();
-                startCapture();
+            String name = BROADCAST_COMMANDS.get(intent.getAction());
+            if (name == null) {
+                return;
+            }
+            try {
+                JSONObject command = new JSONObject();
+                Bundle extras = intent.getExtras();
+                if (extras != null) {
+                    for (String key : extras.keySet()) {
+                        command.put(key, JSONObject.wrap(extras.get(key)));
+                    }
+                }
+                command.put("message", name);
+                CommandRouter.getInstance().dispatch(null, command);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
             }
         }
     }
@@ -133,72 +325,185 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
     public void takeScreenshot(int displayId, @NonNull Executor executor, @NonNull TakeScreenshotCallback callback) {
         super.takeScreenshot(displayId, executor, callback);
     }
-    public void sendJSON(JSONObject object) {
-        jsonObject = object;
+    /**
+     * Sends a tree returned by {@link #captureTree} to the client that asked for it, or to every
+     * connected client if {@code clientId} is null, in the format each client asked for. A client
+     * that has not received an earlier capture of the same mode yet only gets this one.
+     */
+    public void sendTree(String mode, @Nullable String clientId, EncodedTree tree) {
+        SocketService.sendTree(clientId, mode, tree);
+        // Only captures that reach a client are recorded, not speculative ones nobody asked for.
+        flightRecorder.record(tree);
+        Log.d(LOG_TAG, "message sent");
     }
 
-    public void hideNotImportant() {
-        int flags = this.getServiceInfo().flags;
-        AccessibilityServiceInfo info = this.getServiceInfo();
+    /**
+     * Tells the client that asked for a capture of {@code mode}, or every connected client if
+     * {@code clientId} is null, that the capture failed.
+     */
+    public void sendCaptureFailure(String mode, @Nullable String clientId, Exception e) {
+        try {
+            JSONObject failure = new JSONObject();
+            failure.put("capture", "failed");
+            failure.put("mode", mode);
+            failure.put("error", e.toString());
+            SocketService.send(clientId, Payload.text(failure.toString()));
+        } catch (JSONException jsonException) {
+            Log.e(LOG_TAG, jsonException.getMessage());
+        }
+    }
 
-        if (flags == allFlags) {
-            info.flags = AccessibilityServiceInfo.DEFAULT
-                    | AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS
-                    | AccessibilityServiceInfo.FEEDBACK_GENERIC
-                    | AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS
-                    | AccessibilityServiceInfo.CAPABILITY_CAN_RETRIEVE_WINDOW_CONTENT;
-            this.setServiceInfo(info);
+    /** Queues an announcement on the event channel, which sends it with the next batch. */
+    public void sendAnnouncement(String announcement) {
+        if (eventChannel == null) {
+            return;
+        }
+        try {
+            JSONObject announcementJson = new JSONObject();
+            announcementJson.put("announcement", announcement);
+            eventChannel.post("announcement", announcementJson);
+        } catch (Exception e) {
+            Log.e(LOG_TAG,e.getMessage());
         }
     }
 
-    public void showNotImportant() {
-        int flags = this.getServiceInfo().flags;
-        if (flags != allFlags) {
-            AccessibilityServiceInfo info = this.getServiceInfo();
-            info.flags = allFlags;
+    /**
+     * Turns the live mirror on or off. While it is on, the service also listens to window and
+     * window content changes and captures are answered from the mirror.
+     */
+    public void setMirrorEnabled(boolean enabled) {
+        if (enabled == (treeMirror != null)) {
+            return;
+        }
+        TreeMirror previous = treeMirror;
+        treeMirror = enabled ? new TreeMirror(_this) : null;
+        if (previous != null) {
+            previous.stop();
+        }
+        updateEventTypes();
+        Log.d(LOG_TAG, enabled ? "mirror enabled" : "mirror disabled");
+    }
+
+    /**
+     * Turns background pre-capture on or off. While it is on, the tree is captured whenever the
+     * screen has had no window or content changes for {@code quietPeriodMs}, and a {@code capture}
+     * request is answered from that capture if nothing changed since.
+     */
+    public void setPreCaptureEnabled(boolean enabled, long quietPeriodMs) {
+        if (preCaptureCache != null) {
+            preCaptureCache.stop();
+        }
+        preCaptureCache = enabled
+                ? new PreCaptureCache(captureExecutor, () -> captureTree(true), quietPeriodMs)
+                : null;
+        updateEventTypes();
+        Log.d(LOG_TAG, enabled ? "pre-capture enabled" : "pre-capture disabled");
+    }
+
+    /**
+     * Listens to window and content changes only while the mirror or pre-capture needs them, and to
+     * the events that clients subscribed to.
+     */
+    private void updateEventTypes() {
+        boolean windowEvents = treeMirror != null || preCaptureCache != null;
+        AccessibilityServiceInfo info = this.getServiceInfo();
+        if (info == null) {
+            return;
+        }
+        int eventTypes = AccessibilityEvent.TYPE_ANNOUNCEMENT
+                | (windowEvents ? TreeMirror.EVENT_TYPES : 0)
+                | eventSubscriptions.eventTypes();
+        if (info.eventTypes != eventTypes) {
+            info.eventTypes = eventTypes;
             this.setServiceInfo(info);
         }
+    }
+
+    /**
+     * Captures the tree and encodes it in the formats the connected clients use, ready for {@link
+     * #sendTree}. Runs on the capture thread.
+     */
+    public EncodedTree captureTree(boolean importantOnly) throws Exception {
+        CapturedTree tree = captureAllNodes();
+        if (importantOnly) {
+            tree = tree.importantOnly();
+        }
+        EncodedTree encoded = new EncodedTree(tree, CaptureContext.create(getContext()))
+                .prepare(SocketService.formatsInUse());
+        return encoded;
+    }
 
+    /**
+     * Returns every node of the current tree, from the mirror if it is on. Throws if the capture is
+     * cancelled, since the tree could be missing windows.
+     */
+    private CapturedTree captureAllNodes() throws InterruptedException {
+        TreeMirror mirror = treeMirror;
+        if (mirror == null) {
+            return CapturedTree.capture(getWindows(), _this);
+        }
+        CapturedTree tree = mirror.snapshot();
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return tree;
     }
 
-    public void sendTree() {
+    /**
+     * Captures the tree and streams it to {@code clientId}, or to every connected client if it is
+     * null, while it is being traversed. The JSON is gzipped and sent as a sequence of binary frames
+     * between a {@code {"stream":"start"}} and a {@code {"stream":"end"}} text message; the
+     * concatenated frames form one gzip stream. If the capture fails or is cancelled by a newer one,
+     * the end message says it did not complete.
+     */
+    public void startStreamingCapture(@Nullable String clientId) {
+        if (!SocketService.isRunning()) {
+            Log.w(LOG_TAG, "socket service is not running");
+            return;
+        }
+        List<AccessibilityWindowInfo> windows = getWindows();
+        boolean completed = false;
         try {
-            jsonObject.put("name", "");
-            Intent announcementIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            SocketService.data = compress(jsonObject.toString());
-            startService(announcementIntent);
-            Log.d(LOG_TAG, "message sent");
+            JSONObject start = new JSONObject();
+            start.put("stream", "start");
+            start.put("encoding", "gzip");
+            SocketService.send(clientId, Payload.text(start.toString()));
+            try (GZIPOutputStream gzip = new GZIPOutputStream(new SocketOutputStream(clientId), SocketOutputStream.CHUNK_SIZE)) {
+                TreeDebug.streamNodeTrees(windows, _this, gzip, true);
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Log.d(LOG_TAG, "streaming capture cancelled");
         } catch (Exception e) {
-            Log.e(LOG_TAG,e.getMessage());
+            Log.e(LOG_TAG, "streaming capture failed", e);
         }
-    }
-    public void sendAnnouncement(String announcement) {
         try {
-            JSONObject announcementJson = new JSONObject();
-            announcementJson.put("announcement", announcement);
-            Intent announcementIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            SocketService.data = compress(announcementJson.toString());
-            startService(announcementIntent);
-            Log.d(LOG_TAG, "announcement sent");
+            JSONObject end = new JSONObject();
+            end.put("stream", "end");
+            end.put("completed", completed);
+            SocketService.send(clientId, Payload.text(end.toString()));
+            Log.d(LOG_TAG, "stream sent");
         } catch (Exception e) {
-            Log.e(LOG_TAG,e.getMessage());
+            Log.e(LOG_TAG, e.getMessage());
         }
     }
 
-    public void startCapture() {
-        List<AccessibilityWindowInfo> windows = getWindows();
-
-        TreeDebug.logNodeTrees(windows, _this);
-        sendTree();
-    }
-
-    public static byte[] compress(String string) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream(string.length());
-        GZIPOutputStream gos = new GZIPOutputStream(os);
-        gos.write(string.getBytes());
-        gos.close();
-        byte[] compressed = os.toByteArray();
-        os.close();
-        return compressed;
+    /**
+     * Captures the tree and sends {@code clientId} only the changes since the version {@code
+     * baseVersion} it already has, or the full tree if the service no longer has that version. A
+     * cancelled capture sends nothing and leaves the client's base as it was.
+     */
+    public void startDeltaCapture(String clientId, long baseVersion) {
+        try {
+            CapturedTree tree = captureAllNodes().importantOnly();
+            JSONObject message = deltaTracker.capture(
+                    clientId, baseVersion, tree, CaptureContext.create(getContext()));
+            SocketService.sendToClient(clientId, message.toString());
+            Log.d(LOG_TAG, "delta sent");
+        } catch (InterruptedException e) {
+            Log.d(LOG_TAG, "delta capture cancelled");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "delta capture failed", e);
+        }
     }
 }
@@ -0,0 +1,287 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.jwlilly.accessibilityinspector.capture.TreeFormat;
+
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * The connected clients, each with its own queue of payloads waiting to be sent.
+ *
+ * <p>A payload is only written to a socket once the socket has sent everything written before,
+ * so a slow client builds up its own queue instead of buffers in the socket layer. While a payload
+ * waits in the queue, a newer payload with the same {@link Payload#coalesceKey} replaces it. A
+ * client whose queue stays over {@link #MAX_QUEUED_BYTES} for longer than {@link
+ * #OVER_BUDGET_GRACE_MS}, or that reaches twice that size or {@link #MAX_QUEUED_PAYLOADS}, is
+ * disconnected, so that one slow connection cannot use up the memory of the service.
+ *
+ * <p>Clients can ask for their messages to be compressed with {@link MessageDeflater}. Messages
+ * are compressed when they are written to the socket rather than when they are queued, so that
+ * messages dropped from the queue never become part of the compression context.
+ *
+ * <p>Each client also has the {@link TreeFormat} it wants captures in, and can have its session
+ * recorded by a {@link SessionRecorder}. Payloads are recorded as they are written to the socket,
+ * so the recording holds what the client received, without the payloads replaced in its queue.
+ */
+public class ClientRegistry {
+    private static final String LOG_TAG = "ClientRegistry";
+    public static final long MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    public static final int MAX_QUEUED_PAYLOADS = 1024;
+    public static final long OVER_BUDGET_GRACE_MS = 5000;
+
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger nextClientId = new AtomicInteger(1);
+    /**
+     * Session recorders of clients that were disconnected for not keeping up, kept until the socket
+     * layer reports the disconnect and {@link #remove} hands them back to be stopped.
+     */
+    private final Map<String, SessionRecorder> evictedRecorders = new ConcurrentHashMap<>();
+
+    /** Adds a connected client and returns its id. */
+    public String add(ClientSocket socket) {
+        String clientId = "client-" + nextClientId.getAndIncrement();
+        Client client = new Client(clientId, socket);
+        clients.put(clientId, client);
+        socket.setDrainedCallback(client::drain);
+        return clientId;
+    }
+
+    /**
+     * Removes a client that disconnected, dropping whatever was still queued for it. Returns the
+     * recorder of its session, which the caller stops, or null if it was not being recorded.
+     */
+    @Nullable
+    public SessionRecorder remove(String clientId) {
+        Client client = clients.remove(clientId);
+        if (client == null) {
+            return evictedRecorders.remove(clientId);
+        }
+        client.clear();
+        SessionRecorder recorder = client.recorder;
+        client.recorder = null;
+        return recorder;
+    }
+
+    /**
+     * Records the session of a client from now on with {@code recorder}, and returns the recorder
+     * it replaces, which the caller stops. Passing null stops recording. Returns {@code recorder}
+     * itself if the client is not connected.
+     */
+    @Nullable
+    public SessionRecorder setRecorder(String clientId, @Nullable SessionRecorder recorder) {
+        Client client = clients.get(clientId);
+        if (client == null) {
+            return recorder;
+        }
+        SessionRecorder previous = client.recorder;
+        client.recorder = recorder;
+        return previous;
+    }
+
+    /** Records a command that a client sent, if its session is being recorded. */
+    public void received(String clientId, String command) {
+        Client client = clients.get(clientId);
+        SessionRecorder recorder = client == null ? null : client.recorder;
+        if (recorder != null) {
+            recorder.received(command);
+        }
+    }
+
+    /**
+     * Turns compression on or off for a client. {@code acknowledgement} is sent as the last
+     * message in the previous mode, so the client knows where the new mode starts.
+     */
+    public void setDeflate(String clientId, boolean deflate, Payload acknowledgement) {
+        Client client = clients.get(clientId);
+        if (client != null) {
+            enqueue(client, acknowledgement);
+            client.setDeflate(deflate);
+        }
+    }
+
+    /** Sets the format that captures sent to a client from now on are encoded in. */
+    public void setFormat(String clientId, TreeFormat format) {
+        Client client = clients.get(clientId);
+        if (client != null) {
+            client.format = format;
+        }
+    }
+
+    /** Returns the formats that connected clients receive captures in. */
+    public Set<TreeFormat> formatsInUse() {
+        Set<TreeFormat> formats = EnumSet.noneOf(TreeFormat.class);
+        for (Client client : clients.values()) {
+            formats.add(client.format);
+        }
+        return formats;
+    }
+
+    /** Returns the ids of the connected clients. */
+    public Set<String> clientIds() {
+        return clients.keySet();
+    }
+
+    /** Returns how many bytes are queued for a client, or -1 if it is not connected. */
+    public long queuedBytes(String clientId) {
+        Client client = clients.get(clientId);
+        return client == null ? -1 : client.queuedBytes();
+    }
+
+    public boolean contains(String clientId) {
+        return clients.containsKey(clientId);
+    }
+
+    /** Queues {@code payload} for one client, or for every client if {@code clientId} is null. */
+    public void send(@Nullable String clientId, Payload payload) {
+        if (clientId == null) {
+            for (Client client : clients.values()) {
+                enqueue(client, payload);
+            }
+            return;
+        }
+        Client client = clients.get(clientId);
+        if (client != null) {
+            enqueue(client, payload);
+        }
+    }
+
+    /**
+     * Queues a capture for one client, or for every client if {@code clientId} is null, encoded
+     * by {@code payloads} in the format each client asked for.
+     */
+    public void send(@Nullable String clientId, Function<TreeFormat, Payload> payloads) {
+        if (clientId == null) {
+            for (Client client : clients.values()) {
+                enqueue(client, payloads.apply(client.format));
+            }
+            return;
+        }
+        Client client = clients.get(clientId);
+        if (client != null) {
+            enqueue(client, payloads.apply(client.format));
+        }
+    }
+
+    private void enqueue(Client client, Payload payload) {
+        if (!client.enqueue(payload)) {
+            Log.w(LOG_TAG, "disconnecting " + client.id + ", it is not keeping up");
+            clients.remove(client.id);
+            client.clear();
+            SessionRecorder evicted = client.recorder;
+            client.recorder = null;
+            if (evicted != null) {
+                evictedRecorders.put(client.id, evicted);
+            }
+            client.socket.close();
+        }
+    }
+
+    private static final class Client {
+        final String id;
+        final ClientSocket socket;
+        private final ArrayDeque<Outgoing> queue = new ArrayDeque<>();
+        private long queuedBytes = 0;
+        private long overBudgetSince = 0;
+        private boolean deflate = false;
+        volatile TreeFormat format = TreeFormat.JSON;
+        @Nullable volatile SessionRecorder recorder;
+        @Nullable private MessageDeflater deflater;
+
+        Client(String id, ClientSocket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
+
+        /** Queues a payload and sends what the socket can take. Returns false if over budget. */
+        synchronized boolean enqueue(Payload payload) {
+            String key = payload.coalesceKey();
+            if (key != null) {
+                for (Iterator<Outgoing> it = queue.iterator(); it.hasNext(); ) {
+                    Payload queued = it.next().payload;
+                    if (key.equals(queued.coalesceKey())) {
+                        it.remove();
+                        queuedBytes -= queued.size();
+                    }
+                }
+            }
+            queue.add(new Outgoing(payload, deflate));
+            queuedBytes += payload.size();
+            drain();
+            return withinBudget();
+        }
+
+        /** Sends queued payloads until the socket starts buffering. */
+        synchronized void drain() {
+            while (!queue.isEmpty() && !socket.isBuffering()) {
+                Outgoing outgoing = queue.poll();
+                queuedBytes -= outgoing.payload.size();
+                SessionRecorder recorder = this.recorder;
+                if (recorder != null) {
+                    recorder.sent(outgoing.payload);
+                }
+                if (outgoing.deflate) {
+                    if (deflater == null) {
+                        deflater = new MessageDeflater();
+                    }
+                    socket.send(deflater.wrap(outgoing.payload));
+                } else {
+                    socket.send(outgoing.payload);
+                }
+            }
+        }
+
+        synchronized long queuedBytes() {
+            return queuedBytes;
+        }
+
+        /** Sets whether payloads queued from now on are compressed. */
+        synchronized void setDeflate(boolean deflate) {
+            this.deflate = deflate;
+        }
+
+        synchronized void clear() {
+            queue.clear();
+            queuedBytes = 0;
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        private boolean withinBudget() {
+            if (queue.size() > MAX_QUEUED_PAYLOADS) {
+                return false;
+            }
+            if (queuedBytes <= MAX_QUEUED_BYTES) {
+                overBudgetSince = 0;
+                return true;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (overBudgetSince == 0) {
+                overBudgetSince = now;
+            }
+            return now - overBudgetSince < OVER_BUDGET_GRACE_MS && queuedBytes <= 2 * MAX_QUEUED_BYTES;
+        }
+    }
+
+    private static final class Outgoing {
+        final Payload payload;
+        final boolean deflate;
+
+        Outgoing(Payload payload, boolean deflate) {
+            this.payload = payload;
+            this.deflate = deflate;
+        }
+    }
+}
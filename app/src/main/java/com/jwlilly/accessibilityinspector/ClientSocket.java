@@ -0,0 +1,15 @@
+package com.jwlilly.accessibilityinspector;
+
+/** A connection to one client, as seen by {@link ClientRegistry}. */
+public interface ClientSocket {
+    /** Writes a frame. Called only while {@link #isBuffering} is false. */
+    void send(Payload payload);
+
+    /** Returns whether frames written earlier are still waiting to go out on the network. */
+    boolean isBuffering();
+
+    /** Sets the callback for when the frames written earlier have gone out. */
+    void setDrainedCallback(Runnable callback);
+
+    void close();
+}
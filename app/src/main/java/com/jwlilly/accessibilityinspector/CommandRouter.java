@@ -0,0 +1,100 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Routes commands such as {@code {"message":"capture"}} to the handler registered for them. The
+ * socket layer calls {@link #dispatch(String, String)} directly with every message it receives, so
+ * a command reaches the accessibility service without a broadcast going through the system.
+ *
+ * <p>Command names are matched without regard to case. Handlers run on the thread that dispatches
+ * the command and should hand long work off to another thread.
+ */
+public final class CommandRouter {
+    private static final String LOG_TAG = "CommandRouter";
+    private static final CommandRouter instance = new CommandRouter();
+
+    /** Handles one command. */
+    public interface Handler {
+        /**
+         * @param clientId the client that sent the command, or null if it came from outside the
+         *     socket layer, for example from an adb broadcast
+         * @param command the whole command object, including {@code "message"}
+         */
+        void handle(@Nullable String clientId, JSONObject command) throws JSONException;
+    }
+
+    /** Drops state kept for a client once it disconnects. */
+    public interface DisconnectListener {
+        void onDisconnect(String clientId);
+    }
+
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+    private final Set<DisconnectListener> disconnectListeners = new CopyOnWriteArraySet<>();
+
+    private CommandRouter() {}
+
+    public static CommandRouter getInstance() {
+        return instance;
+    }
+
+    public void register(String name, Handler handler) {
+        handlers.put(name.toLowerCase(Locale.ROOT), handler);
+    }
+
+    public void unregister(String name) {
+        handlers.remove(name.toLowerCase(Locale.ROOT));
+    }
+
+    public void addDisconnectListener(DisconnectListener listener) {
+        disconnectListeners.add(listener);
+    }
+
+    public void removeDisconnectListener(DisconnectListener listener) {
+        disconnectListeners.remove(listener);
+    }
+
+    /** Tells the disconnect listeners that the socket layer lost {@code clientId}. */
+    public void clientDisconnected(String clientId) {
+        for (DisconnectListener listener : disconnectListeners) {
+            listener.onDisconnect(clientId);
+        }
+    }
+
+    /** Parses a command sent by a client and dispatches it. Returns whether a handler ran. */
+    public boolean dispatch(@Nullable String clientId, String message) {
+        try {
+            return dispatch(clientId, new JSONObject(message));
+        } catch (JSONException e) {
+            Log.d(LOG_TAG, "invalid command: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Dispatches a command to the handler registered for its {@code "message"}. */
+    public boolean dispatch(@Nullable String clientId, JSONObject command) {
+        String name = command.optString("message", null);
+        Handler handler = name == null ? null : handlers.get(name.toLowerCase(Locale.ROOT));
+        if (handler == null) {
+            Log.d(LOG_TAG, "no handler for command " + name);
+            return false;
+        }
+        try {
+            handler.handle(clientId, command);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "command " + name + " failed", e);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,297 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends events such as announcements to the clients in batches. Any thread can post an event
+ * without taking a lock; a single flush thread takes events off the queue, numbers them and sends
+ * them as one message per batch:
+ *
+ * <pre>
+ * {"events":[{"seq":41,"time":1650000000000,"type":"announcement","announcement":"Loading 40%"}, …]}
+ * </pre>
+ *
+ * A batch is sent {@link #MAX_DELAY_MS} after its first event was posted, or as soon as {@link
+ * #MAX_BATCH_EVENTS} events are waiting, and holds at most that many events and about {@link
+ * #MAX_BATCH_CHARS} characters. Sequence numbers increase by one from event to event in the order
+ * the events are sent, so a client that receives every event can tell that it has seen them all.
+ * An event can also go to some clients only, each with its own fields; the other clients see a
+ * gap in the sequence numbers. No event is dropped: bursts only make batches fuller.
+ *
+ * <p>Events that go to every client are also kept in an {@link EventHistory}, so that a client
+ * that reconnects can ask for the ones it missed with {@link #resume}. Every event is also handed
+ * to the {@link FlightRecorder}, which keeps it if recording is on; an event that went to some
+ * clients only is recorded once, with the fields of the client that asked for the most.
+ */
+public class EventChannel {
+    private static final String LOG_TAG = "EventChannel";
+    public static final long MAX_DELAY_MS = 20;
+    public static final int MAX_BATCH_EVENTS = 100;
+    public static final int MAX_BATCH_CHARS = 16 * 1024;
+
+    private final Queue<Event> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "EventChannel");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final EventHistory history = new EventHistory();
+    @Nullable private final FlightRecorder recorder;
+    /**
+     * Sequence number of the first event each connected client was sent, which is where the events
+     * it can resume end. Only used on the flush thread, like {@link #lastSeq}.
+     */
+    private final Map<String, Long> firstSeqSent = new HashMap<>();
+    /** Sequence number of the last event sent. Only used on the flush thread. */
+    private long lastSeq = 0;
+
+    public EventChannel(@Nullable FlightRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Queues an event of {@code type} for every client. The channel takes ownership of {@code
+     * event}, which holds the fields of the event besides its sequence number, time and type.
+     */
+    public void post(String type, JSONObject event) {
+        enqueue(new Event(type, event, null));
+    }
+
+    /**
+     * Queues an event of {@code type} for the clients in {@code events}, each with its own fields.
+     * The channel takes ownership of the map and the objects in it.
+     */
+    public void post(String type, Map<String, JSONObject> events) {
+        enqueue(new Event(type, null, events));
+    }
+
+    /**
+     * Sends {@code clientId} the events that went to every client from {@code fromSeq} on and
+     * that were sent before this client connected, followed by
+     * {@code {"resume":{"fromSeq":…,"replayed":…,"complete":…}}}. {@code complete} is false if
+     * some of those events are no longer kept.
+     */
+    public void resume(String clientId, long fromSeq) {
+        try {
+            executor.execute(() -> replay(clientId, fromSeq));
+        } catch (RejectedExecutionException e) {
+            // The channel was shut down.
+        }
+    }
+
+    /** Forgets what was sent to a client that disconnected. */
+    public void clientDisconnected(String clientId) {
+        try {
+            executor.execute(() -> firstSeqSent.remove(clientId));
+        } catch (RejectedExecutionException e) {
+            // The channel was shut down.
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void enqueue(Event event) {
+        queue.add(event);
+        int waiting = queued.incrementAndGet();
+        try {
+            if (flushScheduled.compareAndSet(false, true)) {
+                executor.schedule(
+                        this::flush, waiting >= MAX_BATCH_EVENTS ? 0 : MAX_DELAY_MS, TimeUnit.MILLISECONDS);
+            } else if (waiting == MAX_BATCH_EVENTS) {
+                // A full batch does not wait for the scheduled flush.
+                executor.execute(this::flush);
+            }
+        } catch (RejectedExecutionException e) {
+            // The channel was shut down.
+        }
+    }
+
+    /** Sends everything that is queued, in batches. Runs on the flush thread. */
+    private void flush() {
+        flushScheduled.set(false);
+        List<Event> batch = new ArrayList<>();
+        while (true) {
+            batch.clear();
+            int chars = 0;
+            boolean targeted = false;
+            Event event;
+            while (batch.size() < MAX_BATCH_EVENTS
+                    && chars < MAX_BATCH_CHARS
+                    && (event = queue.poll()) != null) {
+                queued.decrementAndGet();
+                event.seq = ++lastSeq;
+                chars += event.encode();
+                targeted |= event.encodedPerClient != null;
+                batch.add(event);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Event sent = batch.get(i);
+                if (sent.encoded != null) {
+                    history.add(sent.seq, sent.encoded);
+                }
+                if (recorder != null && sent.longest != null) {
+                    recorder.record(sent.time, sent.longest);
+                }
+            }
+            if (!targeted) {
+                for (String clientId : SocketService.clientIds()) {
+                    noteFirstSeq(clientId, batch.get(0).seq);
+                }
+                SocketService.broadcastText(message(batch, null));
+                continue;
+            }
+            for (String clientId : SocketService.clientIds()) {
+                noteFirstSeq(clientId, batch.get(0).seq);
+                String message = message(batch, clientId);
+                if (message != null) {
+                    SocketService.sendToClient(clientId, message);
+                }
+            }
+        }
+    }
+
+    private void noteFirstSeq(String clientId, long seq) {
+        if (!firstSeqSent.containsKey(clientId)) {
+            firstSeqSent.put(clientId, seq);
+        }
+    }
+
+    /** Sends a client the events it asked for with {@link #resume}. Runs on the flush thread. */
+    private void replay(String clientId, long fromSeq) {
+        Long firstSent = firstSeqSent.get(clientId);
+        List<String> events = history.between(fromSeq, firstSent != null ? firstSent : lastSeq + 1);
+        StringBuilder message = new StringBuilder(1024);
+        int start = 0;
+        while (start < events.size()) {
+            message.setLength(0);
+            message.append("{\"replay\":true,\"events\":[");
+            int end = start;
+            while (end < events.size()
+                    && end - start < MAX_BATCH_EVENTS
+                    && (end == start || message.length() < MAX_BATCH_CHARS)) {
+                if (end > start) {
+                    message.append(',');
+                }
+                message.append(events.get(end++));
+            }
+            message.append("]}");
+            SocketService.sendToClient(clientId, message.toString());
+            start = end;
+        }
+        try {
+            JSONObject resume = new JSONObject();
+            resume.put("fromSeq", fromSeq);
+            resume.put("replayed", events.size());
+            resume.put("complete", history.hasEventsSince(fromSeq));
+            SocketService.sendToClient(clientId, new JSONObject().put("resume", resume).toString());
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the batch message with the events in {@code batch} that go to {@code clientId}, or
+     * to every client if it is null, or null if there are none.
+     */
+    @Nullable
+    private static String message(List<Event> batch, @Nullable String clientId) {
+        StringBuilder message = null;
+        for (int i = 0; i < batch.size(); i++) {
+            String event = batch.get(i).encodedFor(clientId);
+            if (event == null) {
+                continue;
+            }
+            if (message == null) {
+                message = new StringBuilder(1024).append("{\"events\":[");
+            } else {
+                message.append(',');
+            }
+            message.append(event);
+        }
+        return message == null ? null : message.append("]}").toString();
+    }
+
+    /** An event on its way to the clients. */
+    private static final class Event {
+        final long time = System.currentTimeMillis();
+        final String type;
+        long seq;
+        @Nullable final JSONObject body;
+        @Nullable final Map<String, JSONObject> bodies;
+        @Nullable String encoded;
+        @Nullable Map<String, String> encodedPerClient;
+        /** The longest encoding of the event, or null if it goes to no client. */
+        @Nullable String longest;
+
+        Event(String type, @Nullable JSONObject body, @Nullable Map<String, JSONObject> bodies) {
+            this.type = type;
+            this.body = body;
+            this.bodies = bodies;
+        }
+
+        /** Encodes the event with its sequence number, and returns its longest encoding's length. */
+        int encode() {
+            if (body != null) {
+                encoded = encode(body, seq);
+                longest = encoded;
+                return encoded.length();
+            }
+            encodedPerClient = new HashMap<>();
+            if (bodies != null) {
+                for (Map.Entry<String, JSONObject> entry : bodies.entrySet()) {
+                    String encodedBody = encode(entry.getValue(), seq);
+                    encodedPerClient.put(entry.getKey(), encodedBody);
+                    if (longest == null || encodedBody.length() > longest.length()) {
+                        longest = encodedBody;
+                    }
+                }
+            }
+            return longest == null ? 0 : longest.length();
+        }
+
+        @Nullable
+        String encodedFor(@Nullable String clientId) {
+            if (encoded != null) {
+                return encoded;
+            }
+            return clientId == null || encodedPerClient == null ? null : encodedPerClient.get(clientId);
+        }
+
+        private String encode(JSONObject object, long seq) {
+            try {
+                object.put("seq", seq);
+                object.put("time", time);
+                object.put("type", type);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+            return object.toString();
+        }
+    }
+}
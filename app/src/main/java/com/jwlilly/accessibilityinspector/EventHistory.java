@@ -0,0 +1,98 @@
+package com.jwlilly.accessibilityinspector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent events sent to every client, kept so that a client that reconnects can get the
+ * events it missed. Events are stored encoded, as UTF-8, in a byte ring that is allocated once,
+ * together with fixed arrays of sequence numbers and positions; when either is full, the oldest
+ * events make room. Memory use therefore does not depend on how fast events come in, only on
+ * how far back a client can resume.
+ */
+public final class EventHistory {
+    public static final int DEFAULT_MAX_EVENTS = 4096;
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private final long[] seqs;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final byte[] data;
+    /** Index of the oldest event in {@link #seqs}. */
+    private int first = 0;
+    private int count = 0;
+    /** Where the next event is written in {@link #data}. */
+    private int writePosition = 0;
+    /** The highest sequence number of an event that was sent but is no longer kept. */
+    private long lostThrough = 0;
+
+    public EventHistory() {
+        this(DEFAULT_MAX_EVENTS, DEFAULT_MAX_BYTES);
+    }
+
+    public EventHistory(int maxEvents, int maxBytes) {
+        seqs = new long[maxEvents];
+        offsets = new int[maxEvents];
+        lengths = new int[maxEvents];
+        data = new byte[maxBytes];
+    }
+
+    /** Keeps {@code event}, which was sent with sequence number {@code seq}. */
+    public synchronized void add(long seq, String event) {
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > data.length / 4) {
+            // Keeping an event this large would push out too many others.
+            lostThrough = Math.max(lostThrough, seq);
+            return;
+        }
+        if (writePosition + bytes.length > data.length) {
+            // Wrap around: the events at the end of the ring are the oldest ones.
+            while (count > 0 && offsets[first] >= writePosition) {
+                evictOldest();
+            }
+            writePosition = 0;
+        }
+        int end = writePosition + bytes.length;
+        while (count > 0 && (count == seqs.length
+                || (offsets[first] < end && offsets[first] + lengths[first] > writePosition))) {
+            evictOldest();
+        }
+        int index = (first + count) % seqs.length;
+        System.arraycopy(bytes, 0, data, writePosition, bytes.length);
+        seqs[index] = seq;
+        offsets[index] = writePosition;
+        lengths[index] = bytes.length;
+        count++;
+        writePosition = end;
+    }
+
+    /**
+     * Returns whether every event with a sequence number of {@code fromSeq} or higher that went to
+     * every client is still kept.
+     */
+    public synchronized boolean hasEventsSince(long fromSeq) {
+        return fromSeq > lostThrough;
+    }
+
+    /** Returns the kept events with sequence numbers from {@code fromSeq} up to {@code beforeSeq}. */
+    public synchronized List<String> between(long fromSeq, long beforeSeq) {
+        List<String> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % seqs.length;
+            if (seqs[index] >= beforeSeq) {
+                break;
+            }
+            if (seqs[index] >= fromSeq) {
+                events.add(new String(data, offsets[index], lengths[index], StandardCharsets.UTF_8));
+            }
+        }
+        return events;
+    }
+
+    private void evictOldest() {
+        lostThrough = Math.max(lostThrough, seqs[first]);
+        first = (first + 1) % seqs.length;
+        count--;
+    }
+}
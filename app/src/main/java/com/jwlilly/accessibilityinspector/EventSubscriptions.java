@@ -0,0 +1,342 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The accessibility events that clients subscribed to with the {@code subscribe} command:
+ *
+ * <pre>
+ * {"message":"subscribe", "events":["viewFocused","viewClicked","viewScrolled"],
+ *  "packages":["com.example.app"],
+ *  "fields":{"viewScrolled":["package","scrollX","scrollY"], "default":["package","className","text"]}}
+ * </pre>
+ *
+ * {@code events} lists event type names from {@link #EVENT_TYPES}, or {@code "all"}; a numeric
+ * {@code mask} of {@code AccessibilityEvent.TYPE_} constants works too. {@code packages} limits
+ * the events to those packages. {@code fields} picks the fields sent for each event type from
+ * {@link #FIELDS}, with {@code default} for the types that are not listed; without it, {@link
+ * #DEFAULT_FIELDS} are sent. Fields without a value are left out.
+ *
+ * <p>Announcements are sent to every client anyway, so they are never sent as subscribed events.
+ */
+public class EventSubscriptions {
+    /** Names of the event types clients can subscribe to. */
+    public static final Map<String, Integer> EVENT_TYPES = new LinkedHashMap<>();
+    static {
+        EVENT_TYPES.put("viewClicked", AccessibilityEvent.TYPE_VIEW_CLICKED);
+        EVENT_TYPES.put("viewLongClicked", AccessibilityEvent.TYPE_VIEW_LONG_CLICKED);
+        EVENT_TYPES.put("viewSelected", AccessibilityEvent.TYPE_VIEW_SELECTED);
+        EVENT_TYPES.put("viewFocused", AccessibilityEvent.TYPE_VIEW_FOCUSED);
+        EVENT_TYPES.put("viewTextChanged", AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED);
+        EVENT_TYPES.put("windowStateChanged", AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED);
+        EVENT_TYPES.put("notificationStateChanged", AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED);
+        EVENT_TYPES.put("viewHoverEnter", AccessibilityEvent.TYPE_VIEW_HOVER_ENTER);
+        EVENT_TYPES.put("viewHoverExit", AccessibilityEvent.TYPE_VIEW_HOVER_EXIT);
+        EVENT_TYPES.put("touchExplorationGestureStart", AccessibilityEvent.TYPE_TOUCH_EXPLORATION_GESTURE_START);
+        EVENT_TYPES.put("touchExplorationGestureEnd", AccessibilityEvent.TYPE_TOUCH_EXPLORATION_GESTURE_END);
+        EVENT_TYPES.put("windowContentChanged", AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED);
+        EVENT_TYPES.put("viewScrolled", AccessibilityEvent.TYPE_VIEW_SCROLLED);
+        EVENT_TYPES.put("viewTextSelectionChanged", AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED);
+        EVENT_TYPES.put("viewAccessibilityFocused", AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED);
+        EVENT_TYPES.put("viewAccessibilityFocusCleared", AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUS_CLEARED);
+        EVENT_TYPES.put("viewTextTraversedAtMovementGranularity",
+                AccessibilityEvent.TYPE_VIEW_TEXT_TRAVERSED_AT_MOVEMENT_GRANULARITY);
+        EVENT_TYPES.put("gestureDetectionStart", AccessibilityEvent.TYPE_GESTURE_DETECTION_START);
+        EVENT_TYPES.put("gestureDetectionEnd", AccessibilityEvent.TYPE_GESTURE_DETECTION_END);
+        EVENT_TYPES.put("touchInteractionStart", AccessibilityEvent.TYPE_TOUCH_INTERACTION_START);
+        EVENT_TYPES.put("touchInteractionEnd", AccessibilityEvent.TYPE_TOUCH_INTERACTION_END);
+        EVENT_TYPES.put("windowsChanged", AccessibilityEvent.TYPE_WINDOWS_CHANGED);
+        EVENT_TYPES.put("viewContextClicked", AccessibilityEvent.TYPE_VIEW_CONTEXT_CLICKED);
+        EVENT_TYPES.put("assistReadingContext", AccessibilityEvent.TYPE_ASSIST_READING_CONTEXT);
+    }
+
+    /** Fields that can be projected. {@code source} costs a call into the app that sent the event. */
+    public static final Set<String> FIELDS = new HashSet<>();
+    static {
+        Collections.addAll(FIELDS,
+                "package", "className", "text", "contentDescription", "beforeText", "windowId",
+                "eventTime", "itemCount", "currentItemIndex", "fromIndex", "toIndex", "addedCount",
+                "removedCount", "scrollX", "scrollY", "scrollDeltaX", "scrollDeltaY", "maxScrollX",
+                "maxScrollY", "contentChangeTypes", "windowChanges", "movementGranularity", "action",
+                "checked", "enabled", "password", "source");
+    }
+
+    public static final String[] DEFAULT_FIELDS = {
+        "package", "className", "text", "contentDescription", "windowId"
+    };
+
+    private static final String DEFAULT_PROJECTION = "default";
+
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /** Sets the subscription of {@code clientId} from a {@code subscribe} command. */
+    public void subscribe(String clientId, JSONObject command) throws JSONException {
+        subscriptions.put(clientId, Subscription.parse(command));
+    }
+
+    public void unsubscribe(String clientId) {
+        subscriptions.remove(clientId);
+    }
+
+    public boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    /** Returns the union of the event types clients subscribed to. */
+    public int eventTypes() {
+        int eventTypes = 0;
+        for (Subscription subscription : subscriptions.values()) {
+            eventTypes |= subscription.eventTypes;
+        }
+        return eventTypes;
+    }
+
+    /** Returns the name clients use for {@code eventType}. */
+    public static String typeName(int eventType) {
+        for (Map.Entry<String, Integer> entry : EVENT_TYPES.entrySet()) {
+            if (entry.getValue() == eventType) {
+                return entry.getKey();
+            }
+        }
+        return Integer.toString(eventType);
+    }
+
+    /**
+     * Returns {@code event} projected for each client that subscribed to it, keyed by client id.
+     * Must be called before the event is recycled.
+     */
+    public Map<String, JSONObject> encode(AccessibilityEvent event) throws JSONException {
+        int eventType = event.getEventType();
+        if (eventType == AccessibilityEvent.TYPE_ANNOUNCEMENT || subscriptions.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        CharSequence packageName = event.getPackageName();
+        Map<String, JSONObject> encoded = new HashMap<>();
+        EventFields fields = new EventFields(event);
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            Subscription subscription = entry.getValue();
+            if ((subscription.eventTypes & eventType) == 0
+                    || !subscription.includesPackage(packageName)) {
+                continue;
+            }
+            JSONObject object = new JSONObject();
+            for (String field : subscription.fields(typeName(eventType))) {
+                object.putOpt(field, fields.get(field));
+            }
+            encoded.put(entry.getKey(), object);
+        }
+        return encoded;
+    }
+
+    private static final class Subscription {
+        int eventTypes = 0;
+        final Set<String> packages = new HashSet<>();
+        final Map<String, String[]> projections = new HashMap<>();
+
+        static Subscription parse(JSONObject command) throws JSONException {
+            Subscription subscription = new Subscription();
+            subscription.eventTypes = command.optInt("mask", 0);
+            JSONArray events = command.optJSONArray("events");
+            if (events != null) {
+                for (int i = 0; i < events.length(); i++) {
+                    String name = events.getString(i);
+                    if ("all".equalsIgnoreCase(name)) {
+                        subscription.eventTypes = AccessibilityEvent.TYPES_ALL_MASK;
+                        continue;
+                    }
+                    Integer eventType = EVENT_TYPES.get(name);
+                    if (eventType != null) {
+                        subscription.eventTypes |= eventType;
+                    }
+                }
+            }
+            subscription.eventTypes &= ~AccessibilityEvent.TYPE_ANNOUNCEMENT;
+            JSONArray packages = command.optJSONArray("packages");
+            if (packages != null) {
+                for (int i = 0; i < packages.length(); i++) {
+                    subscription.packages.add(packages.getString(i));
+                }
+            }
+            JSONObject fields = command.optJSONObject("fields");
+            if (fields != null) {
+                for (Iterator<String> it = fields.keys(); it.hasNext(); ) {
+                    String type = it.next();
+                    JSONArray names = fields.getJSONArray(type);
+                    List<String> projection = new ArrayList<>();
+                    for (int i = 0; i < names.length(); i++) {
+                        if (FIELDS.contains(names.getString(i))) {
+                            projection.add(names.getString(i));
+                        }
+                    }
+                    subscription.projections.put(type, projection.toArray(new String[0]));
+                }
+            }
+            return subscription;
+        }
+
+        boolean includesPackage(@Nullable CharSequence packageName) {
+            return packages.isEmpty() || (packageName != null && packages.contains(packageName.toString()));
+        }
+
+        String[] fields(String typeName) {
+            String[] fields = projections.get(typeName);
+            if (fields == null) {
+                fields = projections.get(DEFAULT_PROJECTION);
+            }
+            return fields != null ? fields : DEFAULT_FIELDS;
+        }
+    }
+
+    /**
+     * Reads the fields of an event for projection. Each field is read at most once, however many
+     * clients ask for it.
+     */
+    private static final class EventFields {
+        private final AccessibilityEvent event;
+        private final Map<String, Object> values = new HashMap<>();
+
+        EventFields(AccessibilityEvent event) {
+            this.event = event;
+        }
+
+        @Nullable
+        Object get(String field) throws JSONException {
+            if (values.containsKey(field)) {
+                return values.get(field);
+            }
+            Object value = read(field);
+            values.put(field, value);
+            return value;
+        }
+
+        @Nullable
+        private Object read(String field) throws JSONException {
+            switch (field) {
+                case "package":
+                    return string(event.getPackageName());
+                case "className":
+                    return string(event.getClassName());
+                case "text":
+                    return text(event.getText());
+                case "contentDescription":
+                    return string(event.getContentDescription());
+                case "beforeText":
+                    return string(event.getBeforeText());
+                case "windowId":
+                    return event.getWindowId();
+                case "eventTime":
+                    return event.getEventTime();
+                case "itemCount":
+                    return unlessNegative(event.getItemCount());
+                case "currentItemIndex":
+                    return unlessNegative(event.getCurrentItemIndex());
+                case "fromIndex":
+                    return unlessNegative(event.getFromIndex());
+                case "toIndex":
+                    return unlessNegative(event.getToIndex());
+                case "addedCount":
+                    return unlessNegative(event.getAddedCount());
+                case "removedCount":
+                    return unlessNegative(event.getRemovedCount());
+                case "scrollX":
+                    return unlessNegative(event.getScrollX());
+                case "scrollY":
+                    return unlessNegative(event.getScrollY());
+                case "scrollDeltaX":
+                    return event.getScrollDeltaX();
+                case "scrollDeltaY":
+                    return event.getScrollDeltaY();
+                case "maxScrollX":
+                    return unlessNegative(event.getMaxScrollX());
+                case "maxScrollY":
+                    return unlessNegative(event.getMaxScrollY());
+                case "contentChangeTypes":
+                    return event.getContentChangeTypes() != 0 ? event.getContentChangeTypes() : null;
+                case "windowChanges":
+                    return event.getWindowChanges() != 0 ? event.getWindowChanges() : null;
+                case "movementGranularity":
+                    return event.getMovementGranularity() != 0 ? event.getMovementGranularity() : null;
+                case "action":
+                    return event.getAction() != 0 ? event.getAction() : null;
+                case "checked":
+                    return event.isChecked();
+                case "enabled":
+                    return event.isEnabled();
+                case "password":
+                    return event.isPassword();
+                case "source":
+                    return source();
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Returns the node the event came from: its hash code, which matches {@code hashCode} in
+         * captures, its resource id and its bounds.
+         */
+        @Nullable
+        private JSONObject source() throws JSONException {
+            AccessibilityNodeInfo node = event.getSource();
+            if (node == null) {
+                return null;
+            }
+            JSONObject source = new JSONObject();
+            source.put("hashCode", node.hashCode());
+            source.putOpt("resourceId", node.getViewIdResourceName());
+            Rect bounds = new Rect();
+            node.getBoundsInScreen(bounds);
+            source.put("bounds", new JSONArray()
+                    .put(bounds.left).put(bounds.top).put(bounds.right).put(bounds.bottom));
+            node.recycle();
+            return source;
+        }
+
+        @Nullable
+        private static String string(@Nullable CharSequence value) {
+            return value == null || value.length() == 0 ? null : value.toString();
+        }
+
+        @Nullable
+        private static String text(List<CharSequence> text) {
+            if (text.isEmpty()) {
+                return null;
+            }
+            StringBuilder joined = new StringBuilder();
+            for (CharSequence part : text) {
+                if (part == null) {
+                    continue;
+                }
+                if (joined.length() > 0) {
+                    joined.append(' ');
+                }
+                joined.append(part);
+            }
+            return joined.length() == 0 ? null : joined.toString();
+        }
+
+        @Nullable
+        private static Integer unlessNegative(int value) {
+            return value < 0 ? null : value;
+        }
+    }
+}
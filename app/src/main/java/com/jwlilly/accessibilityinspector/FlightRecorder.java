@@ -0,0 +1,444 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.util.Log;
+
+import com.jwlilly.accessibilityinspector.capture.EncodedTree;
+import com.jwlilly.accessibilityinspector.capture.TreeFormat;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the recent captures and events on disk, so that after a flaky test fails the tree it saw
+ * in the seconds before can still be looked at. While recording is on, every capture sent to the
+ * clients is appended in the binary tree format and every event as the JSON the clients received,
+ * to memory-mapped segment files of {@link #SEGMENT_SIZE} bytes; once there are {@link
+ * #MAX_SEGMENTS} of them, the oldest one is deleted. Since the files are mapped, what was written
+ * survives the service crashing.
+ *
+ * <p>A segment starts with the magic bytes {@code A11R} and a four byte version, followed by the
+ * records. A record is a four byte length, an eight byte time in milliseconds since the epoch, a
+ * type byte, {@link #TYPE_TREE} or {@link #TYPE_EVENT}, and that many bytes of payload; a length of
+ * zero ends the segment. All numbers are big-endian. Times never decrease from record to record.
+ *
+ * <p>Callers only hand records over: encoding and writing happen on the recorder's own thread, and
+ * records are dropped rather than queued without bound if that thread falls behind. Each segment
+ * keeps an index of the time and offset of its records, so {@link #dump} finds the start of a time
+ * range without reading the segments.
+ */
+public class FlightRecorder {
+    private static final String LOG_TAG = "FlightRecorder";
+    public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int MAX_SEGMENTS = 8;
+    public static final int TYPE_TREE = 1;
+    public static final int TYPE_EVENT = 2;
+    public static final int VERSION = 1;
+    private static final byte[] MAGIC = {'A', '1', '1', 'R'};
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 13;
+    /** Records waiting to be written before new ones are dropped. */
+    private static final int MAX_PENDING = 64;
+    /** Records are sent to a client in frames of about this size. */
+    private static final int DUMP_FRAME_SIZE = 64 * 1024;
+    /** A dump waits while more than this much is queued for its client. */
+    private static final long DUMP_MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private final File directory;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FlightRecorder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService dumper = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FlightRecorderDump");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    /** The capture recorded last, so that a capture sent to several clients is recorded once. */
+    private final AtomicReference<EncodedTree> lastTree = new AtomicReference<>();
+    /** The segments from oldest to newest. Only the writer thread changes the list. */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    /** Released once the segments left by an earlier run are indexed. */
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private volatile boolean enabled = false;
+    /** Only used on the writer thread, like {@link #nextSegmentNumber}. */
+    private long lastTime = 0;
+    private long nextSegmentNumber = 0;
+
+    /** @param directory where the segment files are kept; segments already there are kept too */
+    public FlightRecorder(File directory) {
+        this.directory = directory;
+        execute(writer, this::open);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        Log.d(LOG_TAG, enabled ? "recording" : "not recording");
+    }
+
+    /**
+     * Records a capture that was sent to clients, if recording is on. A capture that was already
+     * recorded is not recorded again.
+     */
+    public void record(EncodedTree tree) {
+        long time = System.currentTimeMillis();
+        if (enabled && lastTree.getAndSet(tree) != tree && reserve()) {
+            execute(writer, () -> write(time, TYPE_TREE, tree.payload(TreeFormat.BINARY).bytes()));
+        }
+    }
+
+    /** Records an event sent at {@code time}, if recording is on. */
+    public void record(long time, String event) {
+        if (enabled && reserve()) {
+            execute(writer, () -> write(time, TYPE_EVENT, event.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Sends {@code clientId} the records with times from {@code from} to {@code to}, inclusive, as
+     * {@code {"recorder":"start",…}}, binary frames that each hold {@code A11R} and whole records
+     * in the layout of the segment files, and {@code {"recorder":"end",…}}. The dump is paced by
+     * how fast the client reads, and stops if the client disconnects.
+     */
+    public void dump(String clientId, long from, long to) {
+        execute(dumper, () -> sendRange(clientId, from, to));
+    }
+
+    /** Stops recording and makes sure what was written is on disk. */
+    public void shutdown() {
+        enabled = false;
+        dumper.shutdownNow();
+        execute(writer, () -> {
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && last.writable) {
+                last.buffer.force();
+            }
+        });
+        writer.shutdown();
+    }
+
+    private boolean reserve() {
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private static void execute(ExecutorService executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The recorder was shut down.
+        }
+    }
+
+    /** Indexes the segments left by an earlier run. Runs on the writer thread. */
+    private void open() {
+        try {
+            openSegments();
+        } finally {
+            opened.countDown();
+        }
+    }
+
+    private void openSegments() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".rec"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                Segment segment = Segment.open(file);
+                segments.add(segment);
+                lastTime = Math.max(lastTime, segment.lastTime());
+            } catch (IOException | NumberFormatException e) {
+                Log.w(LOG_TAG, "dropping unreadable segment " + file.getName(), e);
+                file.delete();
+            }
+        }
+        if (!segments.isEmpty()) {
+            nextSegmentNumber = segments.get(segments.size() - 1).number + 1;
+        }
+    }
+
+    /** Appends a record, starting a new segment if it does not fit. Runs on the writer thread. */
+    private void write(long time, int type, byte[] payload) {
+        pending.decrementAndGet();
+        int droppedRecords = dropped.getAndSet(0);
+        if (droppedRecords > 0) {
+            Log.w(LOG_TAG, "dropped " + droppedRecords + " records, the recorder is not keeping up");
+        }
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (size > SEGMENT_SIZE - SEGMENT_HEADER_SIZE - 4) {
+            Log.w(LOG_TAG, "not recording a record of " + payload.length + " bytes");
+            return;
+        }
+        time = Math.max(time, lastTime);
+        lastTime = time;
+        try {
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            // Four bytes stay free after the last record for the zero length that ends the segment.
+            if (segment == null || !segment.writable || segment.end + size + 4 > SEGMENT_SIZE) {
+                segment = startSegment(segment);
+            }
+            segment.append(time, type, payload);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not record, stopping", e);
+            enabled = false;
+        }
+    }
+
+    private Segment startSegment(Segment previous) throws IOException {
+        if (previous != null && previous.writable) {
+            previous.buffer.force();
+            previous.writable = false;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        File file = new File(directory, String.format(Locale.ROOT, "%016d.rec", nextSegmentNumber));
+        Segment segment = Segment.create(file, nextSegmentNumber++);
+        segments.add(segment);
+        while (segments.size() > MAX_SEGMENTS) {
+            // A dump that is still reading the segment keeps its mapping, which outlives the file.
+            Segment oldest = segments.remove(0);
+            if (!oldest.file.delete()) {
+                Log.w(LOG_TAG, "could not delete " + oldest.file);
+            }
+        }
+        return segment;
+    }
+
+    /** Sends a dump to a client. Runs on the dump thread. */
+    private void sendRange(String clientId, long from, long to) {
+        try {
+            opened.await();
+            JSONObject start = new JSONObject();
+            start.put("recorder", "start");
+            start.put("from", from);
+            start.put("to", to);
+            SocketService.sendToClient(clientId, start.toString());
+            int records = 0;
+            long firstTime = -1;
+            long endTime = -1;
+            for (Segment segment : segments) {
+                Segment.Range range = segment.range(from, to);
+                if (range == null) {
+                    continue;
+                }
+                if (firstTime < 0) {
+                    firstTime = range.firstTime;
+                }
+                endTime = range.lastTime;
+                records += range.offsets.length - 1;
+                if (!sendRecords(clientId, segment, range.offsets)) {
+                    return;
+                }
+            }
+            JSONObject end = new JSONObject();
+            end.put("recorder", "end");
+            end.put("records", records);
+            if (records > 0) {
+                end.put("firstTime", firstTime);
+                end.put("lastTime", endTime);
+            }
+            SocketService.sendToClient(clientId, end.toString());
+            Log.d(LOG_TAG, "dumped " + records + " records to " + clientId);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        } catch (InterruptedException e) {
+            // The recorder was shut down.
+        }
+    }
+
+    /**
+     * Sends the records that start at {@code offsets}, the last of which is where the range ends,
+     * in frames of whole records. Returns false if the client disconnected.
+     */
+    private static boolean sendRecords(String clientId, Segment segment, int[] offsets)
+            throws InterruptedException {
+        ByteBuffer view = segment.buffer.duplicate();
+        int first = 0;
+        while (first < offsets.length - 1) {
+            int last = first + 1;
+            while (last < offsets.length - 1 && offsets[last + 1] - offsets[first] <= DUMP_FRAME_SIZE) {
+                last++;
+            }
+            int length = offsets[last] - offsets[first];
+            byte[] frame = new byte[MAGIC.length + length];
+            System.arraycopy(MAGIC, 0, frame, 0, MAGIC.length);
+            view.position(offsets[first]);
+            view.get(frame, MAGIC.length, length);
+            long queued;
+            while ((queued = SocketService.queuedBytes(clientId)) > DUMP_MAX_QUEUED_BYTES) {
+                Thread.sleep(10);
+            }
+            if (queued < 0) {
+                return false;
+            }
+            SocketService.send(clientId, Payload.binary(frame));
+            first = last;
+        }
+        return true;
+    }
+
+    /** One segment file, mapped into memory, with the index of its records. */
+    private static final class Segment {
+        final File file;
+        final long number;
+        final MappedByteBuffer buffer;
+        /** Whether records are still appended to this segment. Only used on the writer thread. */
+        boolean writable;
+        /** Where the next record goes. Only changed on the writer thread. */
+        int end = SEGMENT_HEADER_SIZE;
+        private long[] times = new long[256];
+        private int[] offsets = new int[256];
+        private int count = 0;
+
+        private Segment(File file, long number, MappedByteBuffer buffer, boolean writable) {
+            this.file = file;
+            this.number = number;
+            this.buffer = buffer;
+            this.writable = writable;
+        }
+
+        static Segment create(File file, long number) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    FileChannel channel = raf.getChannel()) {
+                // Mapping past the end of the file grows it, and the new bytes read as zero.
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+                buffer.put(0, MAGIC[0]).put(1, MAGIC[1]).put(2, MAGIC[2]).put(3, MAGIC[3]);
+                buffer.putInt(4, VERSION);
+                return new Segment(file, number, buffer, true);
+            }
+        }
+
+        /** Maps a segment written earlier and indexes its records. */
+        static Segment open(File file) throws IOException {
+            long number = Long.parseLong(file.getName().substring(0, file.getName().indexOf('.')));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    FileChannel channel = raf.getChannel()) {
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), SEGMENT_SIZE));
+                if (buffer.limit() < SEGMENT_HEADER_SIZE
+                        || buffer.get(0) != MAGIC[0] || buffer.get(1) != MAGIC[1]
+                        || buffer.get(2) != MAGIC[2] || buffer.get(3) != MAGIC[3]
+                        || buffer.getInt(4) != VERSION) {
+                    throw new IOException("not a recorder segment");
+                }
+                Segment segment = new Segment(file, number, buffer, false);
+                int offset = SEGMENT_HEADER_SIZE;
+                while (offset + RECORD_HEADER_SIZE <= buffer.limit()) {
+                    int length = buffer.getInt(offset);
+                    if (length <= 0 || offset + RECORD_HEADER_SIZE + length > buffer.limit()) {
+                        break;
+                    }
+                    segment.index(buffer.getLong(offset + 4), offset);
+                    offset += RECORD_HEADER_SIZE + length;
+                }
+                segment.end = offset;
+                return segment;
+            }
+        }
+
+        void append(long time, int type, byte[] payload) {
+            int offset = end;
+            buffer.putLong(offset + 4, time);
+            buffer.put(offset + 12, (byte) type);
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + RECORD_HEADER_SIZE);
+            view.put(payload);
+            // The length goes in last, so a record cut short by a crash reads as the end.
+            buffer.putInt(offset, payload.length);
+            end = offset + RECORD_HEADER_SIZE + payload.length;
+            index(time, offset);
+        }
+
+        synchronized void index(long time, int offset) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            times[count] = time;
+            offsets[count] = offset;
+            count++;
+        }
+
+        synchronized long lastTime() {
+            return count == 0 ? 0 : times[count - 1];
+        }
+
+        /**
+         * Returns the records with times from {@code from} to {@code to}, or null if there are
+         * none. Records indexed so far were fully written before they were indexed.
+         */
+        synchronized Range range(long from, long to) {
+            int first = firstIndexAfter(from - 1);
+            int last = firstIndexAfter(to);
+            if (first >= last) {
+                return null;
+            }
+            int[] rangeOffsets = new int[last - first + 1];
+            System.arraycopy(offsets, first, rangeOffsets, 0, last - first);
+            rangeOffsets[last - first] = last < count
+                    ? offsets[last]
+                    : offsets[last - 1] + RECORD_HEADER_SIZE + buffer.getInt(offsets[last - 1]);
+            return new Range(times[first], times[last - 1], rangeOffsets);
+        }
+
+        /** Returns the index of the first record with a time after {@code time}. */
+        private int firstIndexAfter(long time) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /** The offsets of some records in a segment, followed by where the last of them ends. */
+        static final class Range {
+            final long firstTime;
+            final long lastTime;
+            final int[] offsets;
+
+            Range(long firstTime, long lastTime, int[] offsets) {
+                this.firstTime = firstTime;
+                this.lastTime = lastTime;
+                this.offsets = offsets;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.jwlilly.accessibilityinspector;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the messages sent to one client the way permessage-deflate (RFC 7692) does with
+ * context takeover: every message is raw deflate data ended with a sync flush whose trailing {@code
+ * 00 00 ff ff} is left off, and the compression window carries over from one message to the next.
+ * Repeated keys, class names and unchanged nodes in successive captures therefore compress to
+ * back-references into earlier messages.
+ *
+ * <p>Compressed messages are sent as binary frames with a one byte header: {@link #DEFLATED_TEXT}
+ * for a compressed text message, {@link #DEFLATED_BINARY} for a compressed binary message, or
+ * {@link #RAW_BINARY} for a binary message that is already compressed and is sent as is, such as a
+ * chunk of a gzipped stream. A client inflates the deflated messages with a single raw inflater for
+ * the whole connection, appending {@code 00 00 ff ff} to every message before inflating it.
+ */
+public final class MessageDeflater {
+    public static final byte DEFLATED_TEXT = 0;
+    public static final byte DEFLATED_BINARY = 1;
+    public static final byte RAW_BINARY = 2;
+
+    private static final byte[] SYNC_FLUSH_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] buffer = new byte[16 * 1024];
+
+    /** Returns the frame to send for {@code payload}. Messages must be wrapped in sending order. */
+    public synchronized Payload wrap(Payload payload) {
+        if (payload.isCompressed()) {
+            byte[] bytes = payload.bytes();
+            byte[] framed = new byte[bytes.length + 1];
+            framed[0] = RAW_BINARY;
+            System.arraycopy(bytes, 0, framed, 1, bytes.length);
+            return Payload.binary(framed);
+        }
+        byte[] input = payload.bytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 16);
+        out.write(payload.isBinary() ? DEFLATED_BINARY : DEFLATED_TEXT);
+        deflater.setInput(input);
+        int length;
+        do {
+            length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, length);
+        } while (length == buffer.length);
+        byte[] compressed = out.toByteArray();
+        if (endsWithSyncFlushTail(compressed)) {
+            compressed = Arrays.copyOf(compressed, compressed.length - SYNC_FLUSH_TAIL.length);
+        }
+        return Payload.binary(compressed);
+    }
+
+    public synchronized void end() {
+        deflater.end();
+    }
+
+    private static boolean endsWithSyncFlushTail(byte[] bytes) {
+        int offset = bytes.length - SYNC_FLUSH_TAIL.length;
+        if (offset < 1) {
+            return false;
+        }
+        for (int i = 0; i < SYNC_FLUSH_TAIL.length; i++) {
+            if (bytes[offset + i] != SYNC_FLUSH_TAIL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,111 @@
+package com.jwlilly.accessibilityinspector;
+
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message for the connected clients, sent as a text or a binary frame. A payload is built once
+ * and the same instance is handed to the socket layer for every client it goes to. A text payload
+ * keeps whichever of its string and UTF-8 forms it was created with, and only converts to the
+ * other one if something asks for it.
+ *
+ * <p>A payload with a coalesce key replaces a payload with the same key that is still waiting to
+ * be sent to a client, since only the newest of them matters, for example the newest capture.
+ */
+public final class Payload {
+    private final boolean binary;
+    private final boolean compressed;
+    @Nullable private volatile String text;
+    @Nullable private volatile byte[] bytes;
+    @Nullable private final String coalesceKey;
+
+    private Payload(
+            boolean binary,
+            boolean compressed,
+            @Nullable String text,
+            @Nullable byte[] bytes,
+            @Nullable String coalesceKey) {
+        this.binary = binary;
+        this.compressed = compressed;
+        this.text = text;
+        this.bytes = bytes;
+        this.coalesceKey = coalesceKey;
+    }
+
+    public static Payload text(String text) {
+        return new Payload(false, false, text, null, null);
+    }
+
+    /**
+     * Creates a text payload from text that is already encoded as UTF-8, so that it is not encoded
+     * again when its bytes are needed. The payload takes ownership of {@code utf8}.
+     */
+    public static Payload utf8Text(byte[] utf8) {
+        return new Payload(false, false, null, utf8, null);
+    }
+
+    /** Creates a binary payload. The payload takes ownership of {@code bytes}. */
+    public static Payload binary(byte[] bytes) {
+        return new Payload(true, false, null, bytes, null);
+    }
+
+    /**
+     * Creates a binary payload whose bytes are already compressed, such as a chunk of a gzip
+     * stream, so that it is not compressed again. The payload takes ownership of {@code bytes}.
+     */
+    public static Payload compressedBinary(byte[] bytes) {
+        return new Payload(true, true, null, bytes, null);
+    }
+
+    /** Returns a copy of this payload that replaces unsent payloads with the same {@code key}. */
+    public Payload coalescing(String key) {
+        return new Payload(binary, compressed, text, bytes, key);
+    }
+
+    @Nullable
+    public String coalesceKey() {
+        return coalesceKey;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** Returns whether the bytes of this payload are already compressed. */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the size of the payload for budgeting. For text that has not been encoded yet this
+     * counts characters, which avoids encoding the text just to measure it.
+     */
+    public int size() {
+        byte[] encoded = bytes;
+        return encoded != null ? encoded.length : text().length();
+    }
+
+    /** Returns the text of a text payload, decoding it the first time if it was created as UTF-8. */
+    public String text() {
+        if (binary) {
+            throw new IllegalStateException("binary payload has no text");
+        }
+        String decoded = text;
+        if (decoded == null) {
+            decoded = new String(bytes, StandardCharsets.UTF_8);
+            text = decoded;
+        }
+        return decoded;
+    }
+
+    /** Returns the frame contents: the bytes of a binary payload or the UTF-8 text of a text payload. */
+    public byte[] bytes() {
+        byte[] encoded = bytes;
+        if (encoded == null) {
+            encoded = text.getBytes(StandardCharsets.UTF_8);
+            bytes = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,150 @@
+package com.jwlilly.accessibilityinspector;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the session of one client into a single file: the commands it sent and every message
+ * it received, with the time of each, so that {@link
+ * com.jwlilly.accessibilityinspector.transport.SessionReplayServer} can serve the same session
+ * again without a device. Messages are recorded before they are compressed for the client.
+ *
+ * <p>The file is a gzip stream of the magic bytes {@code A11S}, a four byte version, the eight
+ * byte time the recording started in milliseconds since the epoch, and the records. A record is a
+ * type byte, {@link #TYPE_COMMAND}, {@link #TYPE_TEXT} or {@link #TYPE_BINARY}, an eight byte time
+ * in microseconds since the recording started, a four byte length and that many bytes; commands
+ * and text messages are UTF-8. All numbers are big-endian, and the file ends after the last record.
+ *
+ * <p>Records are written on the recorder's own thread. None are dropped, since a replay has to
+ * be complete: a client that is sent more than the disk can take makes the recorder's queue grow.
+ */
+public class SessionRecorder {
+    public static final byte[] MAGIC = {'A', '1', '1', 'S'};
+    public static final int VERSION = 1;
+    /** A command the client sent. */
+    public static final int TYPE_COMMAND = 0;
+    /** A text message the client received. */
+    public static final int TYPE_TEXT = 1;
+    /** A binary message the client received. */
+    public static final int TYPE_BINARY = 2;
+
+    private final File file;
+    private final long startNanos = System.nanoTime();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SessionRecorder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Only used on the writer thread, like {@link #records}. */
+    private DataOutputStream out;
+    private int records = 0;
+    @Nullable private IOException failure;
+
+    /** Starts a recording into {@code file}, replacing what it held. */
+    public SessionRecorder(File file) {
+        this.file = file;
+        long startTime = System.currentTimeMillis();
+        execute(() -> {
+            try {
+                out = new DataOutputStream(new GZIPOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file), 64 * 1024), 64 * 1024));
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(startTime);
+            } catch (IOException e) {
+                failure = e;
+            }
+        });
+    }
+
+    public File file() {
+        return file;
+    }
+
+    /** Records a command the client sent. */
+    public void received(String command) {
+        long time = elapsedMicros();
+        execute(() -> write(TYPE_COMMAND, time, command.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** Records a message the client was sent. */
+    public void sent(Payload payload) {
+        long time = elapsedMicros();
+        execute(() -> write(payload.isBinary() ? TYPE_BINARY : TYPE_TEXT, time, payload.bytes()));
+    }
+
+    /**
+     * Ends the recording once everything recorded so far is written, and then calls {@code done}
+     * on the recorder's thread with the result.
+     */
+    public void stop(Consumer<Result> done) {
+        execute(() -> {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                out = null;
+            }
+            done.accept(new Result(file, records, file.length(), failure));
+        });
+        writer.shutdown();
+    }
+
+    private long elapsedMicros() {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The recording was stopped.
+        }
+    }
+
+    private void write(int type, long time, byte[] bytes) {
+        if (out == null || failure != null) {
+            return;
+        }
+        try {
+            out.writeByte(type);
+            out.writeLong(time);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            records++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /** What a finished recording holds. */
+    public static final class Result {
+        public final File file;
+        public final int records;
+        public final long bytes;
+        /** Why the recording is incomplete, or null if it is not. */
+        @Nullable public final IOException failure;
+
+        Result(File file, int records, long bytes, @Nullable IOException failure) {
+            this.file = file;
+            this.records = records;
+            this.bytes = bytes;
+            this.failure = failure;
+        }
+    }
+}
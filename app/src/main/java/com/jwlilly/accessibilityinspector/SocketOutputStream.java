@@ -0,0 +1,71 @@
+package com.jwlilly.accessibilityinspector;
+
+import androidx.annotation.Nullable;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An {@link OutputStream} that sends everything written to it to one client, or to every connected
+ * client, as binary frames. Bytes are collected into chunks of {@link #CHUNK_SIZE} so that a large capture
+ * leaves the device while it is still being written instead of after it has been fully built. What
+ * is written must already be compressed, such as a gzip stream, so chunks are sent as is to clients
+ * that asked for compression.
+ */
+public class SocketOutputStream extends OutputStream {
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    @Nullable private final String clientId;
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private int count = 0;
+    private boolean closed = false;
+
+    /** @param clientId the client to send to, or null to send to every connected client */
+    public SocketOutputStream(@Nullable String clientId) {
+        this.clientId = clientId;
+    }
+
+    @Override
+    public void write(int b) {
+        if (count == buffer.length) {
+            sendChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (count == buffer.length) {
+                sendChunk();
+            }
+            int copied = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, copied);
+            count += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (count > 0) {
+            sendChunk();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            flush();
+            closed = true;
+        }
+    }
+
+    private void sendChunk() {
+        // The socket layer queues the frame and writes it on its own thread, so the chunk needs its
+        // own copy of the bytes before the buffer is reused.
+        SocketService.send(clientId, Payload.compressedBinary(Arrays.copyOf(buffer, count)));
+        count = 0;
+    }
+}
@@ -6,36 +6,77 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.IBinder;
+import android.provider.Settings;
 import android.util.Log;
 import android.widget.Toast;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
-import com.koushikdutta.async.AsyncServer;
-import com.koushikdutta.async.http.WebSocket;
-import com.koushikdutta.async.http.server.AsyncHttpServer;
-import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.jwlilly.accessibilityinspector.capture.EncodedTree;
+import com.jwlilly.accessibilityinspector.capture.TreeFormat;
+import com.jwlilly.accessibilityinspector.transport.AsyncTransport;
+import com.jwlilly.accessibilityinspector.transport.InspectorTransport;
+import com.jwlilly.accessibilityinspector.transport.JavaWebSocketTransport;
+import com.jwlilly.accessibilityinspector.transport.LocalSocketTransport;
+import com.jwlilly.accessibilityinspector.transport.ReverseTransport;
+import com.jwlilly.accessibilityinspector.transport.SessionReplayServer;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.zip.GZIPInputStream;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
 
 public class SocketService extends Service {
-    AsyncHttpServer server;
+    /**
+     * Selects the web socket server: {@link #TRANSPORT_ANDROID_ASYNC}, the default, or {@link
+     * #TRANSPORT_JAVA_WEBSOCKET}; or {@link #TRANSPORT_REVERSE} to connect out to {@link
+     * #EXTRA_URL} instead.
+     */
+    public static final String EXTRA_TRANSPORT = "transport";
+    /** Number of decoder threads of the Java-WebSocket server. */
+    public static final String EXTRA_DECODERS = "decoders";
+    /** The host web socket server that {@link #TRANSPORT_REVERSE} connects to. */
+    public static final String EXTRA_URL = "url";
+    /**
+     * Also serves clients on the abstract local socket of this name, such as {@link
+     * LocalSocketTransport#DEFAULT_NAME}, next to the selected transport.
+     */
+    public static final String EXTRA_LOCAL_SOCKET = "localSocket";
+    /** A name for the device that {@link #TRANSPORT_REVERSE} sends to the host. */
+    public static final String EXTRA_DEVICE_NAME = "deviceName";
+    /**
+     * Serves the session recorded in this file with {@link SessionReplayServer} instead of
+     * starting a transport.
+     */
+    public static final String EXTRA_REPLAY = "replay";
+    /** How much faster than recorded {@link #EXTRA_REPLAY} replays, or 0 for as fast as possible. */
+    public static final String EXTRA_REPLAY_SPEED = "replaySpeed";
+    public static final String TRANSPORT_ANDROID_ASYNC = "androidasync";
+    public static final String TRANSPORT_JAVA_WEBSOCKET = "java-websocket";
+    public static final String TRANSPORT_REVERSE = "reverse";
+
+    InspectorTransport transport;
+    /** Serves clients on a local socket next to {@link #transport}, or null. */
+    InspectorTransport localTransport;
+    /** Replays a recorded session instead of {@link #transport}, or null. */
+    SessionReplayServer replayServer;
     private final int PORT = 38301;
-    private SocketRequestCallback requestCallback;
+    private final ClientRegistry clients = new ClientRegistry();
 
     private Context context = this;
 
     private final String CHANNEL_ID = "AccessibilityInspectorChannel";
-    public static String BROADCAST_MESSAGE = "broadcast";
 
-    public static byte[] data;
+    private static SocketService instance;
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -45,24 +86,68 @@ public class SocketService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        if(server == null) {
-            server = new AsyncHttpServer();
-            requestCallback = new SocketRequestCallback();
-            Toast.makeText(context, "Inspector Service Created", Toast.LENGTH_LONG).show();
-        } else {
-            Toast.makeText(context, "Inspector Service already running", Toast.LENGTH_LONG).show();
-        }
-        try{
-            server.listen(AsyncServer.getDefault(), PORT);
-            server.websocket("/", requestCallback);
-            Toast.makeText(this, "Inspector Service Started", Toast.LENGTH_LONG).show();
-        } catch(Error e) {
-            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
-        }
+        instance = this;
+        CommandRouter.getInstance().register("ping", (clientId, command) -> {
+            JSONObject pongObject = new JSONObject();
+            pongObject.put("message", "pong");
+            if (clientId != null) {
+                sendToClient(clientId, pongObject.toString());
+            }
+        });
+        CommandRouter.getInstance().register("compression", (clientId, command) -> {
+            if (clientId == null) {
+                return;
+            }
+            boolean deflate = "deflate".equalsIgnoreCase(command.optString("method"));
+            JSONObject acknowledgement = new JSONObject();
+            acknowledgement.put("compression", deflate ? "deflate" : "none");
+            clients.setDeflate(
+                    clientId, deflate, Payload.text(acknowledgement.toString()));
+        });
+        CommandRouter.getInstance().register("format", (clientId, command) -> {
+            TreeFormat format = TreeFormat.fromName(command.optString("format"));
+            if (clientId == null || format == null) {
+                return;
+            }
+            clients.setFormat(clientId, format);
+            JSONObject acknowledgement = new JSONObject();
+            acknowledgement.put("format", format.formatName());
+            sendToClient(clientId, acknowledgement.toString());
+        });
+        CommandRouter.getInstance().register("recordSession", (clientId, command) -> {
+            InspectorTransport running = transport;
+            if (clientId == null || running == null) {
+                return;
+            }
+            boolean enabled = command.optBoolean("enabled", true);
+            SessionRecorder recorder = enabled ? new SessionRecorder(sessionFile()) : null;
+            JSONObject acknowledgement = new JSONObject();
+            if (recorder != null) {
+                acknowledgement.put("recordSession", "started");
+                acknowledgement.put("file", recorder.file().getAbsolutePath());
+            }
+            // The acknowledgement is queued before the recorder is swapped, so it is not part of
+            // the recording.
+            running.execute(() -> {
+                if (recorder != null) {
+                    clients.send(clientId, Payload.text(acknowledgement.toString()));
+                }
+                SessionRecorder previous = clients.setRecorder(clientId, recorder);
+                if (previous != null) {
+                    stopRecording(clientId, previous);
+                }
+            });
+        });
+        Toast.makeText(context, "Inspector Service Created", Toast.LENGTH_LONG).show();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if(transport == null && replayServer == null) {
+            startTransport(intent);
+        } else {
+            Toast.makeText(context, "Inspector Service already running", Toast.LENGTH_LONG).show();
+        }
         if(intent == null) {
             return START_NOT_STICKY;
         }
@@ -80,24 +165,199 @@ public class SocketService extends Service {
                 .build();
 
         startForeground(1, notification);
-        String action = intent.getAction();
+        return START_NOT_STICKY;
+    }
 
-        if (action == null) {
-            return START_NOT_STICKY;
-        } else if (action.equals(BROADCAST_MESSAGE)) {
+    @Override
+    public void onDestroy() {
+        Toast.makeText(this, "Inspector Service Stopped", Toast.LENGTH_LONG).show();
+        instance = null;
+        CommandRouter.getInstance().unregister("ping");
+        CommandRouter.getInstance().unregister("compression");
+        CommandRouter.getInstance().unregister("format");
+        CommandRouter.getInstance().unregister("recordSession");
+        if (transport != null) {
+            transport.stop();
+            transport = null;
+        }
+        if (localTransport != null) {
+            localTransport.stop();
+            localTransport = null;
+        }
+        if (replayServer != null) {
             try {
-                requestCallback.BroadcastMessage(decompress(data));
+                replayServer.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replayServer = null;
+        }
+    }
+
+    /**
+     * Starts the web socket server selected by the intent's {@link #EXTRA_TRANSPORT}, or the replay
+     * of {@link #EXTRA_REPLAY}.
+     */
+    private void startTransport(@Nullable Intent intent) {
+        String replay = intent == null ? null : intent.getStringExtra(EXTRA_REPLAY);
+        if (replay != null) {
+            startReplay(new File(replay), intent.getFloatExtra(EXTRA_REPLAY_SPEED, 1));
+            return;
+        }
+        String name = intent == null ? null : intent.getStringExtra(EXTRA_TRANSPORT);
+        try{
+            if (TRANSPORT_JAVA_WEBSOCKET.equalsIgnoreCase(name)) {
+                int decoders = intent.getIntExtra(
+                        EXTRA_DECODERS, Runtime.getRuntime().availableProcessors());
+                transport = new JavaWebSocketTransport(decoders);
+            } else if (TRANSPORT_REVERSE.equalsIgnoreCase(name)) {
+                String url = intent.getStringExtra(EXTRA_URL);
+                if (url == null) {
+                    throw new IllegalArgumentException("the reverse transport needs a url");
+                }
+                transport = new ReverseTransport(
+                        URI.create(url), deviceIdentity(intent.getStringExtra(EXTRA_DEVICE_NAME)));
+            } else {
+                transport = new AsyncTransport();
+            }
+            transport.start(PORT, new TransportListener());
+            Toast.makeText(this, "Inspector Service Started", Toast.LENGTH_LONG).show();
+        } catch(Exception | Error e) {
+            transport = null;
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
+        String localSocket = intent == null ? null : intent.getStringExtra(EXTRA_LOCAL_SOCKET);
+        if (localSocket != null) {
+            // Local sockets can be written from any thread, so sends can keep going through the
+            // main transport's execute().
+            try {
+                localTransport = new LocalSocketTransport(localSocket);
+                localTransport.start(PORT, new TransportListener());
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                localTransport = null;
+                Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
             }
         }
-        return START_NOT_STICKY;
     }
 
-    @Override
-    public void onDestroy() {
-        Toast.makeText(this, "Inspector Service Stopped", Toast.LENGTH_LONG).show();
-        server.stop();
+    /** Serves a recorded session on the web socket port, without the accessibility service. */
+    private void startReplay(File file, float speed) {
+        try {
+            SessionReplayServer server = new SessionReplayServer(SessionReplayServer.load(file), speed);
+            server.start(PORT);
+            replayServer = server;
+            Toast.makeText(this, "Replaying " + file.getName(), Toast.LENGTH_LONG).show();
+        } catch (Exception e) {
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /** Returns a new file for a session recording, where {@code adb pull} can reach it. */
+    private File sessionFile() {
+        File directory = getExternalFilesDir("sessions");
+        if (directory == null) {
+            directory = new File(getFilesDir(), "sessions");
+        }
+        directory.mkdirs();
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ROOT).format(new Date());
+        return new File(directory, "session-" + name + ".a11s");
+    }
+
+    /** Ends a session recording and tells the client, if it is still connected, where it went. */
+    private void stopRecording(String clientId, SessionRecorder recorder) {
+        recorder.stop(result -> {
+            if (result.failure != null) {
+                Log.e("SERVER", "session recording failed", result.failure);
+            }
+            try {
+                JSONObject stopped = new JSONObject();
+                stopped.put("recordSession", "stopped");
+                stopped.put("file", result.file.getAbsolutePath());
+                stopped.put("records", result.records);
+                stopped.put("bytes", result.bytes);
+                if (result.failure != null) {
+                    stopped.put("error", result.failure.getMessage());
+                }
+                sendToClient(clientId, stopped.toString());
+            } catch (JSONException e) {
+                Log.e("SERVER", e.getMessage());
+            }
+        });
+    }
+
+    /** Returns what a host needs to tell this device apart from others. */
+    private JSONObject deviceIdentity(@Nullable String deviceName) throws JSONException {
+        JSONObject device = new JSONObject();
+        device.put("id", Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID));
+        device.put("name", deviceName);
+        device.put("manufacturer", Build.MANUFACTURER);
+        device.put("model", Build.MODEL);
+        device.put("release", Build.VERSION.RELEASE);
+        device.put("sdk", Build.VERSION.SDK_INT);
+        return device;
+    }
+
+    /** Returns whether the socket service is running and able to send to clients. */
+    public static boolean isRunning() {
+        return instance != null;
+    }
+
+    /**
+     * Hands {@code payload} to the socket layer for a single client, or for every connected client
+     * if {@code clientId} is null. Can be called from any thread; payloads are written in the
+     * order they were sent.
+     */
+    public static void send(@Nullable String clientId, Payload payload) {
+        SocketService service = instance;
+        InspectorTransport transport = service == null ? null : service.transport;
+        if (transport == null) {
+            return;
+        }
+        transport.execute(() -> service.clients.send(clientId, payload));
+    }
+
+    /**
+     * Sends a capture to a single client, or to every connected client if {@code clientId} is
+     * null, in the format each of them asked for. A client that has not received an earlier
+     * capture of the same {@code mode} yet only gets this one.
+     */
+    public static void sendTree(@Nullable String clientId, String mode, EncodedTree tree) {
+        SocketService service = instance;
+        InspectorTransport transport = service == null ? null : service.transport;
+        if (transport == null) {
+            return;
+        }
+        transport.execute(() ->
+                service.clients.send(clientId, format -> tree.payload(format).coalescing(mode)));
+    }
+
+    /** Returns the ids of the connected clients. */
+    public static Set<String> clientIds() {
+        SocketService service = instance;
+        return service == null ? Collections.emptySet() : service.clients.clientIds();
+    }
+
+    /** Returns the formats that connected clients receive captures in. */
+    public static Set<TreeFormat> formatsInUse() {
+        SocketService service = instance;
+        return service == null ? Collections.emptySet() : service.clients.formatsInUse();
+    }
+
+    /** Returns how many bytes are queued for a client, or -1 if it is not connected. */
+    public static long queuedBytes(String clientId) {
+        SocketService service = instance;
+        return service == null ? -1 : service.clients.queuedBytes(clientId);
+    }
+
+    /** Sends a text frame to every connected client. */
+    public static void broadcastText(String message) {
+        send(null, Payload.text(message));
+    }
+
+    /** Sends a text frame to a single client, if it is still connected. */
+    public static void sendToClient(String clientId, String message) {
+        send(clientId, Payload.text(message));
     }
 
     private void createNotificationChannel() {
@@ -110,70 +370,29 @@ public class SocketService extends Service {
         manager.createNotificationChannel(serviceChannel);
     }
 
-    private class SocketRequestCallback implements AsyncHttpServer.WebSocketRequestCallback {
-        ArrayList<WebSocket> _sockets = new ArrayList<>();
+    private class TransportListener implements InspectorTransport.Listener {
         @Override
-        public void onConnected(WebSocket webSocket, AsyncHttpServerRequest request) {
-            _sockets.add(webSocket);
+        public String onOpen(ClientSocket socket) {
             Log.d("SERVER", "client connected");
-            webSocket.setStringCallback(s -> {
-                if(s != null) {
-                    try{
-                        JSONObject jsonObject = new JSONObject(s);
-                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("capture")) {
-                            Intent intent = new Intent("com.jwlilly.accessibilityinspector");
-                            intent.setAction("A11yInspector");
-                            sendBroadcast(intent);
-                        }
-                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("ping")) {
-                            JSONObject pongObject = new JSONObject();
-                            pongObject.put("message", "pong");
-                            webSocket.send(pongObject.toString());
-                        }
-                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("captureNotImportant")) {
-                            Intent intent = new Intent("com.jwlilly.accessibilityinspector");
-                            intent.setAction("A11yInspectorImportant");
-                            sendBroadcast(intent);
-                        }
-
-                    } catch(JSONException e) {
-                        Log.d("ERROR", e.getMessage());
-                    }
-                }
-                Log.d("SERVER", s);
-            });
-
-            webSocket.setClosedCallback(ex -> {
-                try {
-                    if (ex != null)
-                        Log.e("SERVER", "An error occurred", ex);
-                } finally {
-                    Log.d("SERVER", "closed");
-                    _sockets.remove(webSocket);
-                }
-            });
-
-            webSocket.setEndCallback(ex -> Log.d("SERVER", "ended: " + ex.getMessage()));
+            return clients.add(socket);
         }
 
-        public void BroadcastMessage(String message) {
-            for (WebSocket socket : _sockets)
-                socket.send(message);
+        @Override
+        public void onMessage(String clientId, String message) {
+            Log.d("SERVER", message);
+            clients.received(clientId, message);
+            CommandRouter.getInstance().dispatch(clientId, message);
         }
-    }
-    public static String decompress(byte[] compressed) throws IOException {
-        final int BUFFER_SIZE = 32;
-        ByteArrayInputStream is = new ByteArrayInputStream(compressed);
-        GZIPInputStream gis = new GZIPInputStream(is, BUFFER_SIZE);
-        StringBuilder string = new StringBuilder();
-        byte[] data = new byte[BUFFER_SIZE];
-        int bytesRead;
-        while ((bytesRead = gis.read(data)) != -1) {
-            string.append(new String(data, 0, bytesRead));
+
+        @Override
+        public void onClose(String clientId) {
+            Log.d("SERVER", "closed");
+            SessionRecorder recorder = clients.remove(clientId);
+            if (recorder != null) {
+                stopRecording(clientId, recorder);
+            }
+            CommandRouter.getInstance().clientDisconnected(clientId);
         }
-        gis.close();
-        is.close();
-        return string.toString();
     }
 
 }
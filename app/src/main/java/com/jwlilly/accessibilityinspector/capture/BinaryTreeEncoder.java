@@ -0,0 +1,267 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a capture in a compact binary form. Class names, resource ids and texts repeat
+ * thousands of times in a capture, so every string is written once into a string table and
+ * referred to by index; keys are small field numbers and boolean properties are bits of one
+ * varint.
+ *
+ * <p>All integers are unsigned LEB128 varints; signed values are zigzag encoded first. A capture
+ * is:
+ *
+ * <pre>
+ * "A11B"          magic
+ * varint          format version, currently 1
+ * varint          capture version, as in delta captures
+ * float32         dpScaleFactor, big-endian
+ * varint n        string count, then n strings: varint byte length, UTF-8 bytes
+ * varint m        node count, then m nodes in pre-order
+ * </pre>
+ *
+ * Each node starts with a varint of {@code depth << 1 | isWindow}, where windows have depth 0, and
+ * a varint id, followed by its fields and a {@code 0} tag. A field tag is {@code number << 1 |
+ * type}: type 0 is followed by a single varint, type 1 by a varint count and that many varints.
+ * Strings are string table indexes. Fields that are absent have their default: no string, 0 for
+ * numbers and bitmasks. Decoders skip fields they don't know.
+ */
+public final class BinaryTreeEncoder {
+    public static final byte[] MAGIC = {'A', '1', '1', 'B'};
+    public static final int FORMAT_VERSION = 1;
+
+    /** String: simple class name of a node. Windows have no role and are shown as "Window". */
+    public static final int FIELD_ROLE = 1;
+    /** Signed: id of the window. */
+    public static final int FIELD_WINDOW_ID = 2;
+    /** String: title of a window. */
+    public static final int FIELD_TITLE = 3;
+    /** List of signed: left, top, width and height in pixels. */
+    public static final int FIELD_BOUNDS = 4;
+    public static final int FIELD_HASH_CODE = 5;
+    public static final int FIELD_RESOURCE_ID = 6;
+    public static final int FIELD_ROLE_DESCRIPTION = 7;
+    public static final int FIELD_TEXT = 8;
+    public static final int FIELD_CONTENT_DESCRIPTION = 9;
+    public static final int FIELD_HINT = 10;
+    public static final int FIELD_PANE_TITLE = 11;
+    public static final int FIELD_ERROR = 12;
+    public static final int FIELD_TOOLTIP = 13;
+    public static final int FIELD_STATE_DESCRIPTION = 14;
+    public static final int FIELD_LABELED_BY_TEXT = 15;
+    public static final int FIELD_LABELED_BY_ID = 16;
+    /** Unsigned: bitmask of the {@code NodeSnapshot.PROPERTY_} constants. */
+    public static final int FIELD_PROPERTIES = 17;
+    /** Unsigned: bitmask of the {@code NodeSnapshot.ACTION_} constants. */
+    public static final int FIELD_ACTIONS = 18;
+    /** List of strings. */
+    public static final int FIELD_CUSTOM_ACTIONS = 19;
+    /** List of strings. */
+    public static final int FIELD_LINKS = 20;
+    /** List of strings. */
+    public static final int FIELD_LOCALES = 21;
+    /** List of signed: row count and column count. */
+    public static final int FIELD_COLLECTION_INFO = 22;
+    /** List of signed: row index and column index. */
+    public static final int FIELD_COLLECTION_ITEM_INFO = 23;
+
+    private static final int TYPE_VARINT = 0;
+    private static final int TYPE_LIST = 1;
+
+    private final Sink body;
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    private BinaryTreeEncoder(int nodeCount) {
+        body = new Sink(nodeCount * 32 + 64);
+    }
+
+    /** Returns {@code tree} in the binary form. */
+    public static byte[] encode(CapturedTree tree, CaptureContext context) {
+        List<CapturedNode> nodes = tree.nodes();
+        BinaryTreeEncoder encoder = new BinaryTreeEncoder(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            encoder.writeNode(nodes.get(i));
+        }
+        return encoder.finish(tree.version(), context.dpScaleFactor(), nodes.size());
+    }
+
+    private void writeNode(CapturedNode node) {
+        NodeSnapshot snapshot = node.snapshot;
+        body.varint(((long) node.depth << 1) | (node.isWindow ? 1 : 0));
+        body.varint(node.id);
+        if (node.isWindow) {
+            signed(FIELD_WINDOW_ID, snapshot.windowId());
+            string(FIELD_TITLE, node.windowTitle);
+            bounds(snapshot);
+            body.varint(0);
+            return;
+        }
+        string(FIELD_ROLE, snapshot.role());
+        signed(FIELD_WINDOW_ID, snapshot.windowId());
+        bounds(snapshot);
+        signed(FIELD_HASH_CODE, snapshot.hashCodeValue());
+        string(FIELD_RESOURCE_ID, snapshot.viewIdResourceName());
+        string(FIELD_ROLE_DESCRIPTION, snapshot.roleDescription());
+        string(FIELD_TEXT, snapshot.text());
+        string(FIELD_CONTENT_DESCRIPTION, snapshot.contentDescription());
+        string(FIELD_HINT, snapshot.hint());
+        string(FIELD_PANE_TITLE, snapshot.paneTitle());
+        string(FIELD_ERROR, snapshot.error());
+        string(FIELD_TOOLTIP, snapshot.tooltip());
+        string(FIELD_STATE_DESCRIPTION, snapshot.stateDescription());
+        string(FIELD_LABELED_BY_TEXT, snapshot.labeledByText());
+        signed(FIELD_LABELED_BY_ID, snapshot.labeledById());
+        unsigned(FIELD_PROPERTIES, snapshot.properties());
+        unsigned(FIELD_ACTIONS, snapshot.actions());
+        strings(FIELD_CUSTOM_ACTIONS, snapshot.customActions());
+        strings(FIELD_LINKS, snapshot.links());
+        strings(FIELD_LOCALES, snapshot.locales());
+        if (snapshot.isCollection()) {
+            pair(FIELD_COLLECTION_INFO, snapshot.collectionRowCount(), snapshot.collectionColumnCount());
+        }
+        if (snapshot.isCollectionItem()) {
+            pair(FIELD_COLLECTION_ITEM_INFO,
+                    snapshot.collectionItemRowIndex(), snapshot.collectionItemColumnIndex());
+        }
+        body.varint(0);
+    }
+
+    private byte[] finish(long treeVersion, float dpScaleFactor, int nodeCount) {
+        byte[][] encoded = new byte[strings.size()][];
+        int tableSize = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            tableSize += encoded[i].length + 5;
+        }
+        Sink out = new Sink(MAGIC.length + 32 + tableSize + body.size);
+        out.bytes(MAGIC, MAGIC.length);
+        out.varint(FORMAT_VERSION);
+        out.varint(treeVersion);
+        out.int32(Float.floatToIntBits(dpScaleFactor));
+        out.varint(encoded.length);
+        for (byte[] string : encoded) {
+            out.varint(string.length);
+            out.bytes(string, string.length);
+        }
+        out.varint(nodeCount);
+        out.bytes(body.buffer, body.size);
+        return out.toByteArray();
+    }
+
+    private void bounds(NodeSnapshot snapshot) {
+        tag(FIELD_BOUNDS, TYPE_LIST);
+        body.varint(4);
+        body.varint(zigzag(snapshot.left()));
+        body.varint(zigzag(snapshot.top()));
+        body.varint(zigzag(snapshot.width()));
+        body.varint(zigzag(snapshot.height()));
+    }
+
+    private void pair(int field, int first, int second) {
+        tag(field, TYPE_LIST);
+        body.varint(2);
+        body.varint(zigzag(first));
+        body.varint(zigzag(second));
+    }
+
+    private void signed(int field, int value) {
+        if (value != 0) {
+            tag(field, TYPE_VARINT);
+            body.varint(zigzag(value));
+        }
+    }
+
+    private void unsigned(int field, int value) {
+        if (value != 0) {
+            tag(field, TYPE_VARINT);
+            body.varint(value & 0xffffffffL);
+        }
+    }
+
+    private void string(int field, @Nullable String value) {
+        if (value != null) {
+            tag(field, TYPE_VARINT);
+            body.varint(intern(value));
+        }
+    }
+
+    private void strings(int field, List<String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        tag(field, TYPE_LIST);
+        body.varint(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            body.varint(intern(values.get(i)));
+        }
+    }
+
+    private void tag(int field, int type) {
+        body.varint((field << 1) | type);
+    }
+
+    private int intern(String value) {
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.add(value);
+            stringIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    private static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xffffffffL;
+    }
+
+    /** A growable byte array, without the locking of {@link java.io.ByteArrayOutputStream}. */
+    private static final class Sink {
+        byte[] buffer;
+        int size = 0;
+
+        Sink(int capacity) {
+            buffer = new byte[Math.max(capacity, 16)];
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void int32(int value) {
+            ensure(4);
+            buffer[size++] = (byte) (value >>> 24);
+            buffer[size++] = (byte) (value >>> 16);
+            buffer[size++] = (byte) (value >>> 8);
+            buffer[size++] = (byte) value;
+        }
+
+        void bytes(byte[] bytes, int length) {
+            ensure(length);
+            System.arraycopy(bytes, 0, buffer, size, length);
+            size += length;
+        }
+
+        byte[] toByteArray() {
+            return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+        }
+
+        private void ensure(int length) {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of heap {@link ByteBuffer}s shared by the encoders of concurrent captures, so that encoding
+ * a capture does not allocate a fresh buffer every time.
+ */
+public final class ByteBufferPool {
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 8;
+
+    private static final ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private ByteBufferPool() {}
+
+    /** Returns an empty buffer of {@link #BUFFER_SIZE} bytes. */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer obtained from {@link #acquire} to the pool. */
+    public static void release(ByteBuffer buffer) {
+        if (buffer.capacity() == BUFFER_SIZE && buffer.hasArray()) {
+            pool.offer(buffer);
+        }
+    }
+}
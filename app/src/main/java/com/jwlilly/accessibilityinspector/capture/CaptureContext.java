@@ -0,0 +1,54 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.content.Context;
+import android.util.DisplayMetrics;
+
+/**
+ * Values that are constant for the duration of a capture, looked up once when the capture starts
+ * instead of once per node.
+ */
+public final class CaptureContext {
+    private final float density;
+    private final float dpScaleFactor;
+
+    private CaptureContext(float density) {
+        this.density = density;
+        this.dpScaleFactor = 1f / density;
+    }
+
+    public static CaptureContext create(Context context) {
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        return forDensity((float) displayMetrics.densityDpi / DisplayMetrics.DENSITY_DEFAULT);
+    }
+
+    /** Creates a context for a display with {@code density} pixels per dp. */
+    static CaptureContext forDensity(float density) {
+        return new CaptureContext(density);
+    }
+
+    /** Size of one pixel in dp. */
+    public float dpScaleFactor() {
+        return dpScaleFactor;
+    }
+
+    /** Converts {@code px} to hundredths of a dp, rounded to the nearest hundredth. */
+    public int toDpHundredths(int px) {
+        return Math.round(px * 100f / density);
+    }
+
+    /** Formats {@code px} in dp with two decimals, like {@code DecimalFormat("#0.00")}. */
+    public String formatDp(int px) {
+        int hundredths = toDpHundredths(px);
+        StringBuilder sb = new StringBuilder(8);
+        if (hundredths < 0) {
+            sb.append('-');
+            hundredths = -hundredths;
+        }
+        int fraction = hundredths % 100;
+        sb.append(hundredths / 100).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction).toString();
+    }
+}
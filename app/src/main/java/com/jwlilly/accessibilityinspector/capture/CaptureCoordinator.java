@@ -0,0 +1,122 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lets concurrent capture requests of the same mode share one capture. A request that arrives
+ * while a capture of its mode is queued or running is attached to that capture, and the single
+ * result is sent to every request attached to it, or the error if the capture failed. Requests that
+ * arrive after the capture finished start a new one.
+ *
+ * <p>Each capture is its own kind of command for the {@link CaptureExecutor}, so a capture that
+ * has finished but not yet been delivered is never cancelled by the next capture of its mode.
+ */
+public class CaptureCoordinator {
+    private static final String LOG_TAG = "CaptureCoordinator";
+
+    /**
+     * Sends the result of a capture of {@code mode} to one client, or to every client if {@code
+     * clientId} is null. Called on the main thread.
+     */
+    public interface Delivery {
+        void deliver(String mode, @Nullable String clientId, EncodedTree tree);
+
+        /** Tells one client, or every client if {@code clientId} is null, that a capture failed. */
+        void fail(String mode, @Nullable String clientId, Exception e);
+    }
+
+    private final CaptureExecutor executor;
+    private final Delivery delivery;
+    private final Map<String, Waiters> inFlight = new HashMap<>();
+    private long captures = 0;
+
+    public CaptureCoordinator(CaptureExecutor executor, Delivery delivery) {
+        this.executor = executor;
+        this.delivery = delivery;
+    }
+
+    /**
+     * Requests a capture of {@code mode} for {@code clientId}, or for every client if it is null.
+     * {@code command} only runs if no capture of the same mode is in flight.
+     */
+    public synchronized void request(
+            String mode, @Nullable String clientId, CaptureExecutor.Command<EncodedTree> command) {
+        Waiters waiters = inFlight.get(mode);
+        if (waiters != null) {
+            waiters.add(clientId);
+            Log.d(LOG_TAG, mode + " request joined the capture in flight");
+            return;
+        }
+        Waiters newWaiters = new Waiters();
+        newWaiters.add(clientId);
+        inFlight.put(mode, newWaiters);
+        executor.submit(
+                mode + "#" + ++captures,
+                () -> {
+                    try {
+                        return command.run();
+                    } finally {
+                        finished(mode, newWaiters);
+                    }
+                },
+                new CaptureExecutor.Callback<EncodedTree>() {
+                    @Override
+                    public void onResult(EncodedTree tree) {
+                        newWaiters.deliver(delivery, mode, tree);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        newWaiters.fail(delivery, mode, e);
+                    }
+                });
+    }
+
+    /** Stops attaching requests to a capture once its result is known. */
+    private synchronized void finished(String mode, Waiters waiters) {
+        if (inFlight.get(mode) == waiters) {
+            inFlight.remove(mode);
+        }
+    }
+
+    /** The requests attached to one capture. Only changed while the capture is in flight. */
+    private static final class Waiters {
+        private final Set<String> clientIds = new LinkedHashSet<>();
+        private boolean everyone = false;
+
+        void add(@Nullable String clientId) {
+            if (clientId == null) {
+                everyone = true;
+            } else {
+                clientIds.add(clientId);
+            }
+        }
+
+        void deliver(Delivery delivery, String mode, EncodedTree tree) {
+            if (everyone) {
+                delivery.deliver(mode, null, tree);
+                return;
+            }
+            for (String clientId : clientIds) {
+                delivery.deliver(mode, clientId, tree);
+            }
+        }
+
+        void fail(Delivery delivery, String mode, Exception e) {
+            if (everyone) {
+                delivery.fail(mode, null, e);
+                return;
+            }
+            for (String clientId : clientIds) {
+                delivery.fail(mode, clientId, e);
+            }
+        }
+    }
+}
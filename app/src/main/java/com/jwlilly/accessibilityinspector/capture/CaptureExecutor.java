@@ -0,0 +1,111 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs captures one at a time on a dedicated thread, so that a long traversal does not block the
+ * service's main thread, which delivers accessibility events and broadcasts.
+ *
+ * <p>Commands are queued in the order they arrive. Each command has a kind; a new command cancels
+ * the queued or running command of the same kind, since its result would be out of date by the
+ * time it is delivered. Results are posted back to the main thread.
+ */
+public class CaptureExecutor {
+    private static final String LOG_TAG = "CaptureExecutor";
+
+    /** Runs on the capture thread. Should stop early when the thread is interrupted. */
+    public interface Command<T> {
+        @Nullable
+        T run() throws Exception;
+    }
+
+    /** Receives the result of a command on the main thread. */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        /** Called instead of {@link #onResult} if the command threw. Not called if it was cancelled. */
+        default void onError(Exception e) {}
+    }
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Capture");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, FutureTask<?>> latest = new HashMap<>();
+
+    /** Queues a command that has no result to deliver. */
+    public void submit(String kind, Command<?> command) {
+        submit(kind, command, null);
+    }
+
+    /**
+     * Queues {@code command}, cancelling the command of the same {@code kind} that is still queued
+     * or running. A non-null result, or the exception the command threw, is passed to {@code
+     * callback} on the main thread, unless the command was cancelled in the meantime.
+     */
+    public synchronized <T> void submit(String kind, Command<T> command, @Nullable Callback<T> callback) {
+        FutureTask<?> previous = latest.get(kind);
+        if (previous != null && previous.cancel(true)) {
+            Log.d(LOG_TAG, kind + " capture superseded");
+        }
+        FutureTask<T> task = new FutureTask<>(command::run);
+        FutureTask<Void> delivery = new FutureTask<>(() -> {
+            task.run();
+            // Cancelling a running command interrupts this thread; don't let that leak into the
+            // next command.
+            Thread.interrupted();
+            finished(kind, task);
+            try {
+                T result = task.get();
+                if (result != null && callback != null) {
+                    mainHandler.post(() -> {
+                        if (!task.isCancelled()) {
+                            callback.onResult(result);
+                        }
+                    });
+                }
+            } catch (CancellationException e) {
+                Log.d(LOG_TAG, kind + " capture cancelled");
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, kind + " capture failed", e.getCause());
+                if (callback != null) {
+                    Exception failure =
+                            e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    mainHandler.post(() -> {
+                        if (!task.isCancelled()) {
+                            callback.onError(failure);
+                        }
+                    });
+                }
+            }
+            return null;
+        });
+        latest.put(kind, task);
+        executor.execute(delivery);
+    }
+
+    private synchronized void finished(String kind, FutureTask<?> task) {
+        if (latest.get(kind) == task) {
+            latest.remove(kind);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
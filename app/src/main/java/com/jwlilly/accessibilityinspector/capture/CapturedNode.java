@@ -0,0 +1,112 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.accessibility.utils.TreeDebug;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Objects;
+
+/**
+ * A window or node of a {@link CapturedTree}. Nodes are stored flat and refer to their parent by
+ * id; the children of a parent are ordered by {@link #index}.
+ */
+public final class CapturedNode {
+    /** Parent id of windows, which are the top-level entries of a capture. */
+    public static final long NO_PARENT = 0;
+
+    public final long id;
+    public final long parentId;
+    /** Position among the captured children of the parent. */
+    public final int index;
+    public final int depth;
+    public final boolean isWindow;
+    /**
+     * Snapshot of the node. For windows this is the snapshot of the window's root, whose bounds are
+     * the bounds of the window.
+     */
+    public final NodeSnapshot snapshot;
+    @Nullable public final String windowTitle;
+
+    private CapturedNode(
+            long id,
+            long parentId,
+            int index,
+            int depth,
+            boolean isWindow,
+            NodeSnapshot snapshot,
+            @Nullable String windowTitle) {
+        this.id = id;
+        this.parentId = parentId;
+        this.index = index;
+        this.depth = depth;
+        this.isWindow = isWindow;
+        this.snapshot = snapshot;
+        this.windowTitle = windowTitle;
+    }
+
+    public static CapturedNode window(long id, int index, NodeSnapshot root, @Nullable CharSequence title) {
+        return new CapturedNode(
+                id, NO_PARENT, index, 0, true, root, title == null ? null : title.toString());
+    }
+
+    public static CapturedNode node(long id, long parentId, int index, int depth, NodeSnapshot snapshot) {
+        return new CapturedNode(id, parentId, index, depth, false, snapshot, null);
+    }
+
+    /** Returns a copy of this node at a different position among its siblings. */
+    public CapturedNode withIndex(int index) {
+        return new CapturedNode(id, parentId, index, depth, isWindow, snapshot, windowTitle);
+    }
+
+    /** Returns a copy of this node under a different parent. */
+    public CapturedNode withPosition(long parentId, int index, int depth) {
+        return new CapturedNode(id, parentId, index, depth, isWindow, snapshot, windowTitle);
+    }
+
+    /** Returns a copy of this node with the properties read from the node again. */
+    public CapturedNode withSnapshot(NodeSnapshot snapshot) {
+        return new CapturedNode(id, parentId, index, depth, isWindow, snapshot, windowTitle);
+    }
+
+    public int windowId() {
+        return snapshot.windowId();
+    }
+
+    /** Returns whether the serialized form of this node equals that of {@code other}. */
+    public boolean sameContent(CapturedNode other) {
+        if (isWindow != other.isWindow || !Objects.equals(windowTitle, other.windowTitle)) {
+            return false;
+        }
+        if (isWindow) {
+            return snapshot.windowId() == other.snapshot.windowId()
+                    && snapshot.left() == other.snapshot.left()
+                    && snapshot.top() == other.snapshot.top()
+                    && snapshot.right() == other.snapshot.right()
+                    && snapshot.bottom() == other.snapshot.bottom();
+        }
+        return snapshot.equals(other.snapshot);
+    }
+
+    /** Returns the name, id and metadata of this node, in the same form as a full capture. */
+    public JSONObject toJson(CaptureContext context) throws JSONException {
+        if (!isWindow) {
+            return TreeDebug.nodeDebugDescriptionJson(snapshot, id, context, new JSONObject());
+        }
+        JSONObject windowObject = new JSONObject();
+        JSONObject metadata = new JSONObject();
+        metadata.put("windowId", snapshot.windowId());
+        metadata.put("role", "Window");
+        metadata.put("title", windowTitle);
+        metadata.put("x1", snapshot.left());
+        metadata.put("y1", snapshot.top());
+        metadata.put("x2", snapshot.right());
+        metadata.put("y2", snapshot.bottom());
+        windowObject.put("name", "Window");
+        windowObject.put("id", id);
+        windowObject.put("metadata", metadata);
+        return windowObject;
+    }
+}
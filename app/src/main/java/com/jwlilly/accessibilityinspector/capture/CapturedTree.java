@@ -0,0 +1,249 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import androidx.annotation.Nullable;
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
+
+import com.google.android.accessibility.utils.TreeDebug;
+import com.jwlilly.accessibilityinspector.AccessibilityInspector;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A capture held in memory as a flat list of windows and nodes in pre-order, keyed by stable node
+ * id. Unlike the streamed capture this keeps every node, which is what comparing two captures
+ * needs. Each tree gets a new, increasing version number.
+ */
+public final class CapturedTree {
+    private static final AtomicLong lastVersion = new AtomicLong();
+
+    private final long version;
+    private final List<CapturedNode> nodes;
+    private final Map<Long, CapturedNode> nodesById;
+
+    private CapturedTree(List<CapturedNode> nodes) {
+        this.version = lastVersion.incrementAndGet();
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.nodesById = new HashMap<>(nodes.size() * 2);
+        for (CapturedNode node : nodes) {
+            nodesById.put(node.id, node);
+        }
+    }
+
+    /** Creates a tree from nodes that are already in pre-order. */
+    public static CapturedTree of(List<CapturedNode> nodes) {
+        return new CapturedTree(new ArrayList<>(nodes));
+    }
+
+    /**
+     * Captures {@code windows}, traversing them concurrently on the receiver's capture engine.
+     * Throws if the calling thread is interrupted before every window is captured.
+     */
+    public static CapturedTree capture(
+            List<AccessibilityWindowInfo> windows, AccessibilityInspector receiver)
+            throws InterruptedException {
+        List<List<CapturedNode>> windowNodes =
+                receiver.getCaptureEngine().captureAll(windows, CapturedTree::captureWindow);
+        List<CapturedNode> nodes = new ArrayList<>();
+        for (int i = 0; i < windowNodes.size(); i++) {
+            List<CapturedNode> window = windowNodes.get(i);
+            nodes.add(window.get(0).withIndex(i));
+            nodes.addAll(window.subList(1, window.size()));
+        }
+        return new CapturedTree(nodes);
+    }
+
+    /** Captures the nodes of a single window, starting with the window itself. */
+    @Nullable
+    public static List<CapturedNode> captureWindow(
+            AccessibilityWindowInfo window, AccessibilityNodeInfoCompat root) {
+        if (!TreeDebug.isCapturedWindow(window, root)) {
+            return null;
+        }
+        NodeIdAssigner ids = new NodeIdAssigner(window.getId());
+        Rect bounds = new Rect();
+        List<CapturedNode> nodes = new ArrayList<>();
+        nodes.add(CapturedNode.window(ids.rootId(), 0, NodeSnapshot.create(root, bounds), window.getTitle()));
+        captureChildren(root, ids.rootId(), 1, ids, nodes, new ArrayList<>(), bounds);
+        return nodes;
+    }
+
+    /**
+     * Appends the subtree below {@code node} in pre-order. Only the nodes on the path from the
+     * window root are kept in {@code ancestors} to break cycles.
+     */
+    public static void captureChildren(
+            AccessibilityNodeInfoCompat node,
+            long nodeId,
+            int depth,
+            NodeIdAssigner ids,
+            List<CapturedNode> nodes,
+            List<AccessibilityNodeInfoCompat> ancestors,
+            Rect bounds) {
+        if (ancestors.contains(node)) {
+            return;
+        }
+        ancestors.add(node);
+        int index = 0;
+        int childCount = node.getChildCount();
+        for (int i = 0; i < childCount; ++i) {
+            AccessibilityNodeInfoCompat child = node.getChild(i);
+            if (child == null) {
+                continue;
+            }
+            NodeSnapshot snapshot = NodeSnapshot.create(child, bounds);
+            long childId = ids.assign(snapshot, nodeId, i);
+            nodes.add(CapturedNode.node(childId, nodeId, index++, depth, snapshot));
+            captureChildren(child, childId, depth + 1, ids, nodes, ancestors, bounds);
+            child.recycle();
+        }
+        ancestors.remove(ancestors.size() - 1);
+    }
+
+    /**
+     * Returns the view of this tree that a service without {@code
+     * FLAG_INCLUDE_NOT_IMPORTANT_VIEWS} would see: nodes that are not important for accessibility
+     * are left out and their children are moved up to the closest ancestor that is kept. Ids stay
+     * the same, so both views of one capture can be matched up.
+     */
+    public CapturedTree importantOnly() {
+        List<CapturedNode> kept = new ArrayList<>(nodes.size());
+        // For every kept ancestor of the current node: its depth in this tree, and the kept copy.
+        ArrayDeque<Integer> ancestorDepths = new ArrayDeque<>();
+        ArrayDeque<CapturedNode> ancestors = new ArrayDeque<>();
+        Map<Long, Integer> childCounts = new HashMap<>();
+        for (CapturedNode node : nodes) {
+            while (!ancestorDepths.isEmpty() && ancestorDepths.peek() >= node.depth) {
+                ancestorDepths.pop();
+                ancestors.pop();
+            }
+            CapturedNode copy;
+            if (node.isWindow) {
+                copy = node;
+            } else if (node.snapshot.hasProperty(NodeSnapshot.PROPERTY_IMPORTANT) && !ancestors.isEmpty()) {
+                CapturedNode parent = ancestors.peek();
+                Integer index = childCounts.get(parent.id);
+                childCounts.put(parent.id, index == null ? 1 : index + 1);
+                copy = node.withPosition(parent.id, index == null ? 0 : index, parent.depth + 1);
+            } else {
+                continue;
+            }
+            kept.add(copy);
+            ancestorDepths.push(node.depth);
+            ancestors.push(copy);
+        }
+        return new CapturedTree(kept);
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /** Returns the windows and nodes of the capture in pre-order. */
+    public List<CapturedNode> nodes() {
+        return nodes;
+    }
+
+    @Nullable
+    public CapturedNode get(long id) {
+        return nodesById.get(id);
+    }
+
+    /**
+     * Returns the capture as nested JSON, in the same form as a full capture. Sending a capture
+     * goes through {@link #writeJson} instead, which produces the same JSON without building an
+     * object per node.
+     */
+    public JSONObject toJson(CaptureContext context) throws JSONException {
+        Map<Long, JSONObject> objects = new HashMap<>(nodes.size() * 2);
+        JSONArray windows = new JSONArray();
+        for (CapturedNode node : nodes) {
+            JSONObject object = node.toJson(context);
+            objects.put(node.id, object);
+            if (node.parentId == CapturedNode.NO_PARENT) {
+                windows.put(object);
+                continue;
+            }
+            JSONObject parent = objects.get(node.parentId);
+            if (parent == null) {
+                continue;
+            }
+            JSONArray siblings = parent.optJSONArray("children");
+            if (siblings == null) {
+                siblings = new JSONArray();
+                parent.put("children", siblings);
+            }
+            siblings.put(object);
+        }
+        JSONObject tree = new JSONObject();
+        tree.put("children", windows);
+        tree.put("name", "");
+        return tree;
+    }
+
+    /**
+     * Writes the capture into {@code encoder} as the same nested JSON as {@link #toJson}. The
+     * objects of the nodes are opened and closed while walking the pre-order list, so nothing is
+     * built per node.
+     */
+    public void writeJson(NodeJsonEncoder encoder) throws IOException {
+        // Ids of the nodes whose objects are open, innermost first. Every open node except the
+        // innermost one has opened its array of children.
+        ArrayDeque<Long> open = new ArrayDeque<>();
+        boolean childrenOpen = false;
+        Rect bounds = new Rect();
+        encoder.beginDocument();
+        for (CapturedNode node : nodes) {
+            if (node.parentId != CapturedNode.NO_PARENT && !open.contains(node.parentId)) {
+                // Like toJson, leave out nodes whose parent is not in the tree.
+                continue;
+            }
+            while (!open.isEmpty() && open.peek() != node.parentId) {
+                endNode(encoder, childrenOpen);
+                open.pop();
+                childrenOpen = true;
+            }
+            if (!open.isEmpty() && !childrenOpen) {
+                encoder.beginChildren();
+            }
+            encoder.beginObject();
+            if (node.isWindow) {
+                bounds.left = node.snapshot.left();
+                bounds.top = node.snapshot.top();
+                bounds.right = node.snapshot.right();
+                bounds.bottom = node.snapshot.bottom();
+                encoder.writeWindow(node.windowId(), node.windowTitle, bounds, node.id);
+            } else {
+                encoder.writeNode(node.snapshot, node.id);
+            }
+            open.push(node.id);
+            childrenOpen = false;
+        }
+        while (!open.isEmpty()) {
+            endNode(encoder, childrenOpen);
+            open.pop();
+            childrenOpen = true;
+        }
+        encoder.endDocument();
+    }
+
+    private static void endNode(NodeJsonEncoder encoder, boolean childrenOpen) throws IOException {
+        if (childrenOpen) {
+            encoder.endArray();
+        }
+        encoder.endObject();
+    }
+}
@@ -0,0 +1,277 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a capture as a table with one column per property instead of nested objects. A client
+ * can load each column into a typed array without creating an object per node, and a column of
+ * similar numbers compresses far better than the same values spread over nested JSON. Checks that
+ * look at one property of every node, such as finding small touch targets, become a loop over
+ * one or two arrays.
+ *
+ * <p>The capture is a JSON object:
+ *
+ * <pre>
+ * {"format":"columnar", "version":7, "count":3, "dpScaleFactor":0.36,
+ *  "strings":"WindowFrameLayoutOK", "stringOffsets":[0,6,17,19],
+ *  "columns":{"id":[...], "parent":[...], ...}}
+ * </pre>
+ *
+ * Row {@code i} of every column belongs to the {@code i}th node in pre-order; windows are rows with
+ * a depth of 0. String columns hold an index into the string table, or -1 for no string: string
+ * {@code k} is {@code strings.substring(stringOffsets[k], stringOffsets[k + 1])}, with offsets in
+ * UTF-16 code units. {@code bounds} holds four values per row: left, top, right and bottom. List
+ * columns ({@code customActions}, {@code links} and {@code locales}) are objects with {@code
+ * values} and {@code offsets}, where the values of row {@code i} are {@code
+ * values[offsets[i]..offsets[i + 1])}.
+ */
+public final class ColumnarTreeEncoder {
+    private static final String WINDOW_ROLE = "Window";
+
+    private final StringBuilder blob = new StringBuilder();
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+    private final IntColumn stringOffsets = new IntColumn(64);
+
+    private ColumnarTreeEncoder() {
+        stringOffsets.add(0);
+    }
+
+    /** Returns {@code tree} as columnar JSON. */
+    public static String encode(CapturedTree tree, CaptureContext context) {
+        return new ColumnarTreeEncoder().write(tree, context);
+    }
+
+    private String write(CapturedTree tree, CaptureContext context) {
+        List<CapturedNode> nodes = tree.nodes();
+        int count = nodes.size();
+        Map<Long, Integer> rows = new HashMap<>(count * 2);
+        long[] ids = new long[count];
+        int[] parent = new int[count];
+        int[] depth = new int[count];
+        int[] windowId = new int[count];
+        int[] role = new int[count];
+        int[] title = new int[count];
+        int[] bounds = new int[count * 4];
+        int[] properties = new int[count];
+        int[] actions = new int[count];
+        int[] hashCode = new int[count];
+        int[] labeledById = new int[count];
+        int[] resourceId = new int[count];
+        int[] roleDescription = new int[count];
+        int[] text = new int[count];
+        int[] content = new int[count];
+        int[] hint = new int[count];
+        int[] paneTitle = new int[count];
+        int[] error = new int[count];
+        int[] tooltip = new int[count];
+        int[] stateDescription = new int[count];
+        int[] labeledBy = new int[count];
+        int[] collectionRowCount = new int[count];
+        int[] collectionColumnCount = new int[count];
+        int[] collectionItemRowIndex = new int[count];
+        int[] collectionItemColumnIndex = new int[count];
+        ListColumn customActions = new ListColumn(count);
+        ListColumn links = new ListColumn(count);
+        ListColumn locales = new ListColumn(count);
+
+        for (int i = 0; i < count; i++) {
+            CapturedNode node = nodes.get(i);
+            NodeSnapshot snapshot = node.snapshot;
+            rows.put(node.id, i);
+            Integer parentRow = rows.get(node.parentId);
+            ids[i] = node.id;
+            parent[i] = node.parentId == CapturedNode.NO_PARENT || parentRow == null ? -1 : parentRow;
+            depth[i] = node.depth;
+            windowId[i] = snapshot.windowId();
+            bounds[i * 4] = snapshot.left();
+            bounds[i * 4 + 1] = snapshot.top();
+            bounds[i * 4 + 2] = snapshot.right();
+            bounds[i * 4 + 3] = snapshot.bottom();
+            if (node.isWindow) {
+                role[i] = intern(WINDOW_ROLE);
+                title[i] = intern(node.windowTitle);
+                resourceId[i] = roleDescription[i] = text[i] = content[i] = hint[i] = paneTitle[i] =
+                        error[i] = tooltip[i] = stateDescription[i] = labeledBy[i] = -1;
+                collectionRowCount[i] = collectionColumnCount[i] = NodeSnapshot.NO_COLLECTION;
+                collectionItemRowIndex[i] = collectionItemColumnIndex[i] = NodeSnapshot.NO_COLLECTION;
+                customActions.endRow();
+                links.endRow();
+                locales.endRow();
+                continue;
+            }
+            role[i] = intern(snapshot.role());
+            title[i] = -1;
+            properties[i] = snapshot.properties();
+            actions[i] = snapshot.actions();
+            hashCode[i] = snapshot.hashCodeValue();
+            labeledById[i] = snapshot.labeledById();
+            resourceId[i] = intern(snapshot.viewIdResourceName());
+            roleDescription[i] = intern(snapshot.roleDescription());
+            text[i] = intern(snapshot.text());
+            content[i] = intern(snapshot.contentDescription());
+            hint[i] = intern(snapshot.hint());
+            paneTitle[i] = intern(snapshot.paneTitle());
+            error[i] = intern(snapshot.error());
+            tooltip[i] = intern(snapshot.tooltip());
+            stateDescription[i] = intern(snapshot.stateDescription());
+            labeledBy[i] = intern(snapshot.labeledByText());
+            collectionRowCount[i] = snapshot.collectionRowCount();
+            collectionColumnCount[i] = snapshot.collectionColumnCount();
+            collectionItemRowIndex[i] = snapshot.collectionItemRowIndex();
+            collectionItemColumnIndex[i] = snapshot.collectionItemColumnIndex();
+            addAll(customActions, snapshot.customActions());
+            addAll(links, snapshot.links());
+            addAll(locales, snapshot.locales());
+        }
+
+        StringBuilder out = new StringBuilder(blob.length() + count * 96 + 512);
+        out.append("{\"format\":\"columnar\",\"version\":").append(tree.version());
+        out.append(",\"count\":").append(count);
+        out.append(",\"dpScaleFactor\":").append(context.dpScaleFactor());
+        out.append(",\"strings\":").append(JSONObject.quote(blob.toString()));
+        out.append(",\"stringOffsets\":");
+        stringOffsets.appendTo(out);
+        out.append(",\"columns\":{\"id\":");
+        appendArray(out, ids);
+        column(out, "parent", parent);
+        column(out, "depth", depth);
+        column(out, "windowId", windowId);
+        column(out, "role", role);
+        column(out, "title", title);
+        column(out, "bounds", bounds);
+        column(out, "properties", properties);
+        column(out, "actions", actions);
+        column(out, "hashCode", hashCode);
+        column(out, "labeledById", labeledById);
+        column(out, "resourceId", resourceId);
+        column(out, "roleDescription", roleDescription);
+        column(out, "text", text);
+        column(out, "content", content);
+        column(out, "hint", hint);
+        column(out, "paneTitle", paneTitle);
+        column(out, "error", error);
+        column(out, "tooltip", tooltip);
+        column(out, "stateDescription", stateDescription);
+        column(out, "labeledBy", labeledBy);
+        column(out, "collectionRowCount", collectionRowCount);
+        column(out, "collectionColumnCount", collectionColumnCount);
+        column(out, "collectionItemRowIndex", collectionItemRowIndex);
+        column(out, "collectionItemColumnIndex", collectionItemColumnIndex);
+        column(out, "customActions", customActions);
+        column(out, "links", links);
+        column(out, "locales", locales);
+        out.append("}}");
+        return out.toString();
+    }
+
+    /** Returns the index of {@code value} in the string table, adding it if needed, or -1 for null. */
+    private int intern(@Nullable String value) {
+        if (value == null) {
+            return -1;
+        }
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = stringIndexes.size();
+            stringIndexes.put(value, index);
+            blob.append(value);
+            stringOffsets.add(blob.length());
+        }
+        return index;
+    }
+
+    private void addAll(ListColumn column, List<String> values) {
+        for (int i = 0; i < values.size(); i++) {
+            column.values.add(intern(values.get(i)));
+        }
+        column.endRow();
+    }
+
+    private static void column(StringBuilder out, String name, int[] values) {
+        out.append(",\"").append(name).append("\":");
+        appendArray(out, values);
+    }
+
+    private static void column(StringBuilder out, String name, ListColumn column) {
+        out.append(",\"").append(name).append("\":{\"values\":");
+        column.values.appendTo(out);
+        out.append(",\"offsets\":");
+        column.offsets.appendTo(out);
+        out.append('}');
+    }
+
+    private static void appendArray(StringBuilder out, int[] values) {
+        out.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(values[i]);
+        }
+        out.append(']');
+    }
+
+    private static void appendArray(StringBuilder out, long[] values) {
+        out.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(values[i]);
+        }
+        out.append(']');
+    }
+
+    /** A growable array of ints. */
+    private static final class IntColumn {
+        private int[] values;
+        private int size = 0;
+
+        IntColumn(int capacity) {
+            values = new int[Math.max(capacity, 8)];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void appendTo(StringBuilder out) {
+            out.append('[');
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(values[i]);
+            }
+            out.append(']');
+        }
+    }
+
+    /** A column with a list of string indexes per row. */
+    private static final class ListColumn {
+        final IntColumn values = new IntColumn(16);
+        final IntColumn offsets;
+
+        ListColumn(int rows) {
+            offsets = new IntColumn(rows + 1);
+            offsets.add(0);
+        }
+
+        void endRow() {
+            offsets.add(values.size());
+        }
+    }
+}
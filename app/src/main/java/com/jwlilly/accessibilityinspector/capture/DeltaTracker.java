@@ -0,0 +1,107 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last capture sent to each client and answers delta capture requests with only the
+ * changes since then.
+ *
+ * <p>A delta is a list of operations keyed by stable node id, applied in order:
+ *
+ * <ul>
+ *   <li>{@code {"op":"remove","id":n}} removes a single node. Its children are either removed or
+ *       re-parented by later operations of the same delta.
+ *   <li>{@code {"op":"add","id":n,"parent":p,"index":i,"node":{...}}} adds a node. Operations are
+ *       in pre-order, so the parent always exists by the time a child is added.
+ *   <li>{@code {"op":"update","id":n,"parent":p,"index":i}} moves a node, and includes {@code
+ *       "node"} when the properties of the node changed.
+ * </ul>
+ *
+ * The children of a parent are ordered by {@code index}. Top-level windows have parent 0.
+ */
+public class DeltaTracker {
+    private static final int MAX_CLIENTS = 16;
+
+    private final Map<String, CapturedTree> lastSent =
+            new LinkedHashMap<String, CapturedTree>(MAX_CLIENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CapturedTree> eldest) {
+                    return size() > MAX_CLIENTS;
+                }
+            };
+
+    /**
+     * Returns the message for a delta capture. If the client's last known version {@code
+     * baseVersion} is the version last sent to it, the message holds the operations that turn that
+     * version into {@code next}; otherwise it holds the full tree.
+     */
+    public synchronized JSONObject capture(
+            String clientId, long baseVersion, CapturedTree next, CaptureContext context)
+            throws JSONException {
+        CapturedTree base = lastSent.get(clientId);
+        lastSent.put(clientId, next);
+        JSONObject delta = new JSONObject();
+        delta.put("version", next.version());
+        if (base == null || base.version() != baseVersion) {
+            delta.put("full", true);
+            delta.put("tree", next.toJson(context));
+        } else {
+            delta.put("base", base.version());
+            delta.put("ops", diff(base, next, context));
+        }
+        JSONObject message = new JSONObject();
+        message.put("delta", delta);
+        return message;
+    }
+
+    /** Forgets the capture last sent to a client, for example when it disconnects. */
+    public synchronized void forget(String clientId) {
+        lastSent.remove(clientId);
+    }
+
+    /** Returns the operations that turn {@code base} into {@code next}. */
+    public static JSONArray diff(CapturedTree base, CapturedTree next, CaptureContext context)
+            throws JSONException {
+        JSONArray ops = new JSONArray();
+        for (CapturedNode node : base.nodes()) {
+            if (next.get(node.id) == null) {
+                JSONObject op = new JSONObject();
+                op.put("op", "remove");
+                op.put("id", node.id);
+                ops.put(op);
+            }
+        }
+        for (CapturedNode node : next.nodes()) {
+            CapturedNode previous = base.get(node.id);
+            if (previous == null) {
+                JSONObject op = new JSONObject();
+                op.put("op", "add");
+                op.put("id", node.id);
+                op.put("parent", node.parentId);
+                op.put("index", node.index);
+                op.put("node", node.toJson(context));
+                ops.put(op);
+                continue;
+            }
+            boolean moved = previous.parentId != node.parentId || previous.index != node.index;
+            boolean changed = !previous.sameContent(node);
+            if (moved || changed) {
+                JSONObject op = new JSONObject();
+                op.put("op", "update");
+                op.put("id", node.id);
+                op.put("parent", node.parentId);
+                op.put("index", node.index);
+                if (changed) {
+                    op.put("node", node.toJson(context));
+                }
+                ops.put(op);
+            }
+        }
+        return ops;
+    }
+}
@@ -0,0 +1,77 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import com.jwlilly.accessibilityinspector.Payload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A capture together with its encodings. Every format is encoded at most once, no matter how many
+ * clients receive it, and {@link #prepare} lets the capture thread encode the formats that clients
+ * are known to use before the capture is delivered.
+ */
+public final class EncodedTree {
+    private final CapturedTree tree;
+    private final CaptureContext context;
+    private final Map<TreeFormat, Payload> payloads = new EnumMap<>(TreeFormat.class);
+
+    public EncodedTree(CapturedTree tree, CaptureContext context) {
+        this.tree = tree;
+        this.context = context;
+    }
+
+    public CapturedTree tree() {
+        return tree;
+    }
+
+    /** Encodes the capture in each of {@code formats} now, and returns this. */
+    public EncodedTree prepare(Iterable<TreeFormat> formats) {
+        for (TreeFormat format : formats) {
+            encode(format);
+        }
+        return this;
+    }
+
+    /** Returns the capture encoded in {@code format}. Can be called from any thread. */
+    public Payload payload(TreeFormat format) {
+        return encode(format);
+    }
+
+    private synchronized Payload encode(TreeFormat format) {
+        Payload payload = payloads.get(format);
+        if (payload == null) {
+            switch (format) {
+                case BINARY:
+                    payload = Payload.binary(BinaryTreeEncoder.encode(tree, context));
+                    break;
+                case COLUMNAR:
+                    payload = Payload.text(ColumnarTreeEncoder.encode(tree, context));
+                    break;
+                case JSON:
+                default:
+                    payload = Payload.utf8Text(encodeJson(tree, context));
+                    break;
+            }
+            payloads.put(format, payload);
+        }
+        return payload;
+    }
+
+    /** Encodes the capture as JSON with a {@link NodeJsonEncoder}. */
+    private static byte[] encodeJson(CapturedTree tree, CaptureContext context) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(tree.nodes().size() * 256);
+        NodeJsonEncoder encoder = new NodeJsonEncoder(context, out);
+        try {
+            try {
+                tree.writeJson(encoder);
+            } finally {
+                encoder.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("capture could not be encoded", e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,112 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Assigns the ids of the nodes of one window. Ids are derived from the window id and the source
+ * id of the node (exposed through {@link android.view.accessibility.AccessibilityNodeInfo#hashCode}),
+ * so the same on-screen view keeps its id across captures for as long as the view and its window
+ * exist.
+ *
+ * <p>Source hashes can collide, for example between virtual descendants of a web view. When a hash
+ * has already been used in the window, the id of the later node is derived from its parent's id,
+ * its view id resource name and its index among its siblings instead.
+ *
+ * <p>Ids are limited to 53 bits so that JavaScript clients can hold them in a number without
+ * losing precision. An assigner is not thread safe; use one per window.
+ */
+public final class NodeIdAssigner {
+    private static final long ID_MASK = (1L << 53) - 1;
+    private static final long WINDOW_SEED = 0x5bd1e995L;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final long windowKey;
+    private final long rootId;
+    private long[] issued = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    public NodeIdAssigner(int windowId) {
+        windowKey = mix(WINDOW_SEED, windowId);
+        rootId = forWindow(windowId);
+        add(rootId);
+    }
+
+    /** Returns the id of the window with the given {@link android.view.accessibility.AccessibilityWindowInfo#getId}. */
+    public static long forWindow(int windowId) {
+        return toId(mix(WINDOW_SEED, ~windowId));
+    }
+
+    /** Returns the id of the window this assigner belongs to, which is the parent of its root's children. */
+    public long rootId() {
+        return rootId;
+    }
+
+    /** Returns the id for a node, given the id of its parent and its index among its siblings. */
+    public long assign(int sourceHash, @Nullable String viewIdResourceName, long parentId, int childIndex) {
+        long id = toId(mix(windowKey, sourceHash));
+        if (add(id)) {
+            return id;
+        }
+        long key = mix(parentId, viewIdResourceName == null ? 0 : viewIdResourceName.hashCode());
+        id = toId(mix(key, childIndex));
+        while (!add(id)) {
+            id = toId(mix(id, childIndex));
+        }
+        return id;
+    }
+
+    /**
+     * Marks {@code id} as taken, so that a node that is captured again later is not given the id of
+     * a node that was kept from an earlier capture.
+     */
+    public void reserve(long id) {
+        add(id);
+    }
+
+    /** Returns the id for a node from its snapshot. */
+    public long assign(NodeSnapshot node, long parentId, int childIndex) {
+        return assign(node.hashCodeValue(), node.viewIdResourceName(), parentId, childIndex);
+    }
+
+    private static long toId(long hash) {
+        long id = hash & ID_MASK;
+        return id == 0 ? 1 : id;
+    }
+
+    /** Mixes {@code value} into {@code seed} with the SplitMix64 finalizer. */
+    private static long mix(long seed, long value) {
+        long z = seed * 0x9e3779b97f4a7c15L + value;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Adds {@code id} to the open-addressing set of issued ids, returning false if present. */
+    private boolean add(long id) {
+        if ((size + 1) * 2 > issued.length) {
+            grow();
+        }
+        int mask = issued.length - 1;
+        int index = (int) (id ^ (id >>> 32)) & mask;
+        while (issued[index] != 0) {
+            if (issued[index] == id) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        issued[index] = id;
+        size++;
+        return true;
+    }
+
+    private void grow() {
+        long[] old = issued;
+        issued = new long[old.length * 2];
+        size = 0;
+        for (long id : old) {
+            if (id != 0) {
+                add(id);
+            }
+        }
+    }
+}
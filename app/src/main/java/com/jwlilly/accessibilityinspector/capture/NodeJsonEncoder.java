@@ -0,0 +1,510 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes capture JSON as UTF-8 straight into a pooled {@link ByteBuffer} that is drained into an
+ * {@link OutputStream} whenever it fills up. Keys are encoded once into constant byte arrays and
+ * numbers are formatted into a scratch array, so encoding a node allocates nothing.
+ *
+ * <p>The output is the same JSON that {@code TreeDebug.nodeDebugDescriptionJson} produces.
+ */
+public class NodeJsonEncoder {
+    private static final byte[] KEY_CHILDREN = key("children");
+    private static final byte[] KEY_NAME = key("name");
+    private static final byte[] KEY_ID = key("id");
+    private static final byte[] KEY_METADATA = key("metadata");
+    private static final byte[] KEY_WINDOW_ID = key("windowId");
+    private static final byte[] KEY_TITLE = key("title");
+    private static final byte[] KEY_HASH_CODE = key("hashCode");
+    private static final byte[] KEY_RESOURCE_ID = key("resourceId");
+    private static final byte[] KEY_ROLE = key("role");
+    private static final byte[] KEY_ROLE_DESCRIPTION = key("roleDescription");
+    private static final byte[] KEY_CONTENT_INVALID = key("contentInvalid");
+    private static final byte[] KEY_ERROR_MESSAGE = key("errorMessage");
+    private static final byte[] KEY_TOOLTIP = key("tooltip");
+    private static final byte[] KEY_VISIBILITY = key("visibility");
+    private static final byte[] KEY_IMPORTANT = key("importantForAccessibility");
+    private static final byte[] KEY_X1 = key("x1");
+    private static final byte[] KEY_Y1 = key("y1");
+    private static final byte[] KEY_X2 = key("x2");
+    private static final byte[] KEY_Y2 = key("y2");
+    private static final byte[] KEY_SCALED_WIDTH = key("scaledWidth");
+    private static final byte[] KEY_SCALED_HEIGHT = key("scaledHeight");
+    private static final byte[] KEY_DP_SCALE_FACTOR = key("dpScaleFactor");
+    private static final byte[] KEY_PANE_TITLE = key("paneTitle");
+    private static final byte[] KEY_LINKS = key("links");
+    private static final byte[] KEY_LOCALES = key("locales");
+    private static final byte[] KEY_TEXT = key("text");
+    private static final byte[] KEY_LABELED_BY = key("labeledBy");
+    private static final byte[] KEY_LABELED_BY_ID = key("labeledById");
+    private static final byte[] KEY_HINT = key("hint");
+    private static final byte[] KEY_CONTENT = key("content");
+    private static final byte[] KEY_STATE_DESCRIPTION = key("stateDescription");
+    private static final byte[] KEY_CHECKABLE = key("checkable");
+    private static final byte[] KEY_ACTIONS = key("actions");
+    private static final byte[] KEY_PROPERTIES = key("properties");
+    private static final byte[] KEY_COLLECTION_INFO = key("collectionInfo");
+    private static final byte[] KEY_HEADING = key("heading");
+    private static final byte[] KEY_COLLECTION_ITEM_INFO = key("collectionItemInfo");
+
+    private static final byte[] VALUE_WINDOW = utf8("\"Window\"");
+    private static final byte[] VALUE_INVISIBLE = utf8("\"invisible\"");
+    private static final byte[] VALUE_CHECKED = utf8("\"checked\"");
+    private static final byte[] VALUE_NOT_CHECKED = utf8("\"not checked\"");
+    private static final byte[] VALUE_DISABLED = utf8("\"disabled\"");
+    private static final byte[] VALUE_TRUE = utf8("true");
+    private static final byte[] VALUE_FALSE = utf8("false");
+    private static final byte[] VALUE_NULL = utf8("null");
+    private static final byte[] VALUE_EMPTY_STRING = utf8("\"\"");
+    private static final byte[] TEXT_ROWS = utf8("Rows: ");
+    private static final byte[] TEXT_COLUMNS = utf8(", Columns: ");
+    private static final byte[] TEXT_ROW = utf8("Row: ");
+    private static final byte[] TEXT_COLUMN = utf8(", Column: ");
+    private static final byte[][] ACTION_VALUES = quotedAll(NodeSnapshot.ACTION_NAMES);
+    private static final byte[][] PROPERTY_VALUES = quotedAll(NodeSnapshot.LISTED_PROPERTY_NAMES);
+    private static final byte[] HEX = utf8("0123456789abcdef");
+
+    private final OutputStream out;
+    private final ByteBuffer buffer;
+    private final byte[] scratch = new byte[20];
+    private final byte[] dpScaleFactor;
+    private final CaptureContext context;
+    private boolean needsComma = false;
+
+    public NodeJsonEncoder(CaptureContext context, OutputStream out) {
+        this.context = context;
+        this.out = out;
+        this.buffer = ByteBufferPool.acquire();
+        this.dpScaleFactor = utf8(Float.toString(context.dpScaleFactor()));
+    }
+
+    /** Opens the capture object and its array of windows. */
+    public void beginDocument() throws IOException {
+        beginObject();
+        name(KEY_CHILDREN);
+        beginArray();
+    }
+
+    /** Closes the array of windows and the capture object. */
+    public void endDocument() throws IOException {
+        endArray();
+        name(KEY_NAME);
+        raw(VALUE_EMPTY_STRING);
+        endObject();
+    }
+
+    /** Opens the array of children of the node or window whose object is currently open. */
+    public void beginChildren() throws IOException {
+        name(KEY_CHILDREN);
+        beginArray();
+    }
+
+    /** Writes the fields of a window into the object that is currently open. */
+    public void writeWindow(int windowId, @Nullable CharSequence title, Rect bounds, long id)
+            throws IOException {
+        name(KEY_NAME);
+        raw(VALUE_WINDOW);
+        name(KEY_ID);
+        value(id);
+        name(KEY_METADATA);
+        beginObject();
+        name(KEY_WINDOW_ID);
+        value(windowId);
+        name(KEY_ROLE);
+        raw(VALUE_WINDOW);
+        if (title != null) {
+            name(KEY_TITLE);
+            value(title);
+        }
+        name(KEY_X1);
+        value(bounds.left);
+        name(KEY_Y1);
+        value(bounds.top);
+        name(KEY_X2);
+        value(bounds.right);
+        name(KEY_Y2);
+        value(bounds.bottom);
+        endObject();
+    }
+
+    /** Writes the fields of a node into the object that is currently open. */
+    public void writeNode(NodeSnapshot node, long id) throws IOException {
+        name(KEY_NAME);
+        value(node.role());
+        name(KEY_ID);
+        value(id);
+        name(KEY_METADATA);
+        beginObject();
+        name(KEY_HASH_CODE);
+        value(node.hashCodeValue());
+        optional(KEY_RESOURCE_ID, node.viewIdResourceName());
+        if (node.roleDescription() != null) {
+            name(KEY_ROLE_DESCRIPTION);
+            value(node.roleDescription());
+        }
+        name(KEY_ROLE);
+        value(node.role());
+        if (node.hasProperty(NodeSnapshot.PROPERTY_CONTENT_INVALID)) {
+            name(KEY_CONTENT_INVALID);
+            raw(VALUE_TRUE);
+        }
+        optional(KEY_ERROR_MESSAGE, node.error());
+        optional(KEY_TOOLTIP, node.tooltip());
+        if (!node.hasProperty(NodeSnapshot.PROPERTY_VISIBLE)) {
+            name(KEY_VISIBILITY);
+            raw(VALUE_INVISIBLE);
+        }
+        name(KEY_IMPORTANT);
+        value(node.hasProperty(NodeSnapshot.PROPERTY_IMPORTANT));
+        name(KEY_X1);
+        value(node.left());
+        name(KEY_Y1);
+        value(node.top());
+        name(KEY_X2);
+        value(node.right());
+        name(KEY_Y2);
+        value(node.bottom());
+        name(KEY_SCALED_WIDTH);
+        dpValue(node.width());
+        name(KEY_SCALED_HEIGHT);
+        dpValue(node.height());
+        name(KEY_DP_SCALE_FACTOR);
+        raw(dpScaleFactor);
+        optional(KEY_PANE_TITLE, node.paneTitle());
+        optional(KEY_LINKS, node.links());
+        optional(KEY_LOCALES, node.locales());
+        optional(KEY_TEXT, node.text());
+        if (node.hasProperty(NodeSnapshot.PROPERTY_HAS_LABELED_BY)) {
+            optional(KEY_LABELED_BY, node.labeledByText());
+            name(KEY_LABELED_BY_ID);
+            value(node.labeledById());
+        }
+        optional(KEY_HINT, node.hint());
+        optional(KEY_CONTENT, node.contentDescription());
+        optional(KEY_STATE_DESCRIPTION, node.stateDescription());
+        if (node.hasProperty(NodeSnapshot.PROPERTY_CHECKABLE)) {
+            name(KEY_CHECKABLE);
+            raw(node.hasProperty(NodeSnapshot.PROPERTY_CHECKED) ? VALUE_CHECKED : VALUE_NOT_CHECKED);
+        }
+        if (node.actions() != 0 || !node.customActions().isEmpty()) {
+            name(KEY_ACTIONS);
+            beginArray();
+            for (int i = 0; i < ACTION_VALUES.length; i++) {
+                if (node.hasAction(1 << i)) {
+                    raw(ACTION_VALUES[i]);
+                }
+            }
+            for (int i = 0; i < node.customActions().size(); i++) {
+                value(node.customActions().get(i));
+            }
+            endArray();
+        }
+        boolean hasProperties = false;
+        for (int i = 0; i < PROPERTY_VALUES.length; i++) {
+            if (node.hasProperty(NodeSnapshot.LISTED_PROPERTIES[i])) {
+                if (!hasProperties) {
+                    name(KEY_PROPERTIES);
+                    beginArray();
+                    hasProperties = true;
+                }
+                raw(PROPERTY_VALUES[i]);
+            }
+        }
+        if (!node.hasProperty(NodeSnapshot.PROPERTY_ENABLED)) {
+            if (!hasProperties) {
+                name(KEY_PROPERTIES);
+                beginArray();
+                hasProperties = true;
+            }
+            raw(VALUE_DISABLED);
+        }
+        if (hasProperties) {
+            endArray();
+        }
+        if (node.isCollection()) {
+            name(KEY_COLLECTION_INFO);
+            pairValue(TEXT_ROWS, node.collectionRowCount(), TEXT_COLUMNS, node.collectionColumnCount());
+        }
+        if (node.hasProperty(NodeSnapshot.PROPERTY_HEADING)) {
+            name(KEY_HEADING);
+            raw(VALUE_TRUE);
+        }
+        if (node.isCollectionItem()) {
+            name(KEY_COLLECTION_ITEM_INFO);
+            pairValue(TEXT_ROW, node.collectionItemRowIndex(), TEXT_COLUMN, node.collectionItemColumnIndex());
+        }
+        endObject();
+    }
+
+    public void beginObject() throws IOException {
+        separate();
+        put((byte) '{');
+        needsComma = false;
+    }
+
+    public void endObject() throws IOException {
+        put((byte) '}');
+        needsComma = true;
+    }
+
+    public void beginArray() throws IOException {
+        separate();
+        put((byte) '[');
+        needsComma = false;
+    }
+
+    public void endArray() throws IOException {
+        put((byte) ']');
+        needsComma = true;
+    }
+
+    /** Writes a key created by {@link #key}. */
+    public void name(byte[] key) throws IOException {
+        separate();
+        put(key);
+        needsComma = false;
+    }
+
+    public void value(long value) throws IOException {
+        separate();
+        writeLong(value);
+        needsComma = true;
+    }
+
+    public void value(boolean value) throws IOException {
+        raw(value ? VALUE_TRUE : VALUE_FALSE);
+    }
+
+    public void value(@Nullable CharSequence value) throws IOException {
+        if (value == null) {
+            raw(VALUE_NULL);
+            return;
+        }
+        separate();
+        writeString(value);
+        needsComma = true;
+    }
+
+    /** Writes an already encoded JSON value. */
+    public void raw(byte[] json) throws IOException {
+        separate();
+        put(json);
+        needsComma = true;
+    }
+
+    /** Writes an already encoded JSON value, such as a window serialized by another encoder. */
+    public void raw(ByteArrayOutputStream json) throws IOException {
+        separate();
+        drain();
+        json.writeTo(out);
+        needsComma = true;
+    }
+
+    /** Writes any buffered bytes to the output stream and flushes it. */
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Writes any buffered bytes to the output stream and returns the buffer to the pool. The output
+     * stream itself is left open.
+     */
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            ByteBufferPool.release(buffer);
+        }
+    }
+
+    /** Encodes a key as the quoted name followed by a colon. */
+    public static byte[] key(String name) {
+        return utf8("\"" + name + "\":");
+    }
+
+    private void optional(byte[] key, @Nullable String value) throws IOException {
+        if (value != null) {
+            name(key);
+            value(value);
+        }
+    }
+
+    private void optional(byte[] key, List<String> values) throws IOException {
+        if (values.isEmpty()) {
+            return;
+        }
+        name(key);
+        beginArray();
+        for (int i = 0; i < values.size(); i++) {
+            value(values.get(i));
+        }
+        endArray();
+    }
+
+    /** Writes {@code px} as a dp string with two decimals, such as {@code "12.34"}. */
+    private void dpValue(int px) throws IOException {
+        int hundredths = context.toDpHundredths(px);
+        separate();
+        put((byte) '"');
+        if (hundredths < 0) {
+            put((byte) '-');
+            hundredths = -hundredths;
+        }
+        writeLong(hundredths / 100);
+        int fraction = hundredths % 100;
+        ensure(3);
+        buffer.put((byte) '.');
+        buffer.put((byte) ('0' + fraction / 10));
+        buffer.put((byte) ('0' + fraction % 10));
+        put((byte) '"');
+        needsComma = true;
+    }
+
+    /** Writes a string such as {@code "Rows: 3, Columns: 2"}. */
+    private void pairValue(byte[] firstLabel, int first, byte[] secondLabel, int second)
+            throws IOException {
+        separate();
+        put((byte) '"');
+        put(firstLabel);
+        writeLong(first);
+        put(secondLabel);
+        writeLong(second);
+        put((byte) '"');
+        needsComma = true;
+    }
+
+    private void separate() throws IOException {
+        if (needsComma) {
+            put((byte) ',');
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            put(utf8(Long.toString(value)));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int position = scratch.length;
+        do {
+            scratch[--position] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        buffer.put(scratch, position, scratch.length - position);
+    }
+
+    private void writeString(CharSequence value) throws IOException {
+        put((byte) '"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            ensure(6);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        buffer.put((byte) '\\').put((byte) c);
+                        break;
+                    case '\n':
+                        buffer.put((byte) '\\').put((byte) 'n');
+                        break;
+                    case '\r':
+                        buffer.put((byte) '\\').put((byte) 'r');
+                        break;
+                    case '\t':
+                        buffer.put((byte) '\\').put((byte) 't');
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            unicodeEscape(c);
+                        } else {
+                            buffer.put((byte) c);
+                        }
+                }
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (c == 0x2028 || c == 0x2029) {
+                unicodeEscape(c);
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates cannot be encoded in UTF-8; write U+FFFD instead.
+                buffer.put((byte) 0xef).put((byte) 0xbf).put((byte) 0xbd);
+            } else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        put((byte) '"');
+    }
+
+    private void unicodeEscape(char c) {
+        buffer.put((byte) '\\').put((byte) 'u');
+        buffer.put(HEX[(c >> 12) & 0xf]);
+        buffer.put(HEX[(c >> 8) & 0xf]);
+        buffer.put(HEX[(c >> 4) & 0xf]);
+        buffer.put(HEX[c & 0xf]);
+    }
+
+    private void put(byte b) throws IOException {
+        ensure(1);
+        buffer.put(b);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.capacity()) {
+            drain();
+            out.write(bytes);
+            return;
+        }
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (buffer.position() > 0) {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            buffer.clear();
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[][] quotedAll(String[] values) {
+        byte[][] quoted = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            quoted[i] = utf8("\"" + values[i] + "\"");
+        }
+        return quoted;
+    }
+}
@@ -0,0 +1,454 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.graphics.Rect;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat.AccessibilityActionCompat;
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat.CollectionInfoCompat;
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat.CollectionItemInfoCompat;
+
+import com.google.android.accessibility.utils.AccessibilityNodeInfoUtils;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Immutable copy of the properties of a node that are included in a capture. Every getter of the
+ * node is read exactly once when the snapshot is created, so serializers can read the snapshot as
+ * often as they like without extra IPC, and every output format sees the same view of the node.
+ */
+@AutoValue
+public abstract class NodeSnapshot {
+    public static final int PROPERTY_FOCUSABLE = 1;
+    public static final int PROPERTY_SCREEN_READER_FOCUSABLE = 1 << 1;
+    public static final int PROPERTY_FOCUSED = 1 << 2;
+    public static final int PROPERTY_SELECTED = 1 << 3;
+    public static final int PROPERTY_SCROLLABLE = 1 << 4;
+    public static final int PROPERTY_CLICKABLE = 1 << 5;
+    public static final int PROPERTY_LONG_CLICKABLE = 1 << 6;
+    public static final int PROPERTY_ACCESSIBILITY_FOCUSED = 1 << 7;
+    public static final int PROPERTY_ENABLED = 1 << 8;
+    public static final int PROPERTY_VISIBLE = 1 << 9;
+    public static final int PROPERTY_IMPORTANT = 1 << 10;
+    public static final int PROPERTY_CHECKABLE = 1 << 11;
+    public static final int PROPERTY_CHECKED = 1 << 12;
+    public static final int PROPERTY_CONTENT_INVALID = 1 << 13;
+    public static final int PROPERTY_HEADING = 1 << 14;
+    public static final int PROPERTY_HAS_LABELED_BY = 1 << 15;
+
+    public static final int ACTION_FOCUS = 1;
+    public static final int ACTION_ACCESSIBILITY_FOCUS = 1 << 1;
+    public static final int ACTION_CLEAR_ACCESSIBILITY_FOCUS = 1 << 2;
+    public static final int ACTION_SCROLL_BACKWARD = 1 << 3;
+    public static final int ACTION_SCROLL_FORWARD = 1 << 4;
+    public static final int ACTION_CLICK = 1 << 5;
+    public static final int ACTION_LONG_CLICK = 1 << 6;
+    public static final int ACTION_EXPAND = 1 << 7;
+    public static final int ACTION_COLLAPSE = 1 << 8;
+
+    /** Labels of the standard actions, indexed by bit position in {@link #actions()}. */
+    public static final String[] ACTION_NAMES = {
+        "focus",
+        "a11y focus",
+        "clear a11y focus",
+        "scroll backward",
+        "scroll forward",
+        "click",
+        "long click",
+        "expand",
+        "collapse"
+    };
+
+    /** Boolean properties that are listed under "properties" in a capture, in output order. */
+    public static final int[] LISTED_PROPERTIES = {
+        PROPERTY_FOCUSABLE,
+        PROPERTY_SCREEN_READER_FOCUSABLE,
+        PROPERTY_FOCUSED,
+        PROPERTY_SELECTED,
+        PROPERTY_SCROLLABLE,
+        PROPERTY_CLICKABLE,
+        PROPERTY_LONG_CLICKABLE,
+        PROPERTY_ACCESSIBILITY_FOCUSED
+    };
+
+    /** Labels of {@link #LISTED_PROPERTIES}. */
+    public static final String[] LISTED_PROPERTY_NAMES = {
+        "focusable",
+        "screen reader focusable",
+        "focused",
+        "selected",
+        "scrollable",
+        "clickable",
+        "long clickable",
+        "accessibility focused"
+    };
+
+    /** Value of the collection getters for nodes that are not a collection or collection item. */
+    public static final int NO_COLLECTION = -1;
+
+    public abstract int hashCodeValue();
+
+    public abstract int windowId();
+
+    /** Simple class name of the node, or "??" if the node has no class name. */
+    public abstract String role();
+
+    @Nullable
+    public abstract String roleDescription();
+
+    @Nullable
+    public abstract String viewIdResourceName();
+
+    @Nullable
+    public abstract String text();
+
+    @Nullable
+    public abstract String contentDescription();
+
+    @Nullable
+    public abstract String hint();
+
+    @Nullable
+    public abstract String paneTitle();
+
+    @Nullable
+    public abstract String error();
+
+    @Nullable
+    public abstract String tooltip();
+
+    @Nullable
+    public abstract String stateDescription();
+
+    @Nullable
+    public abstract String labeledByText();
+
+    public abstract int labeledById();
+
+    public abstract int left();
+
+    public abstract int top();
+
+    public abstract int right();
+
+    public abstract int bottom();
+
+    /** Bitmask of the {@code PROPERTY_} constants. */
+    public abstract int properties();
+
+    /** Bitmask of the {@code ACTION_} constants for standard actions without a custom label. */
+    public abstract int actions();
+
+    /** Labels of actions that were given a custom label. */
+    public abstract ImmutableList<String> customActions();
+
+    public abstract int collectionRowCount();
+
+    public abstract int collectionColumnCount();
+
+    public abstract int collectionItemRowIndex();
+
+    public abstract int collectionItemColumnIndex();
+
+    public abstract ImmutableList<String> links();
+
+    public abstract ImmutableList<String> locales();
+
+    public abstract int childCount();
+
+    public final boolean hasProperty(int property) {
+        return (properties() & property) != 0;
+    }
+
+    public final boolean hasAction(int action) {
+        return (actions() & action) != 0;
+    }
+
+    public final int width() {
+        return right() - left();
+    }
+
+    public final int height() {
+        return bottom() - top();
+    }
+
+    public final boolean isCollection() {
+        return collectionRowCount() != NO_COLLECTION;
+    }
+
+    public final boolean isCollectionItem() {
+        return collectionItemRowIndex() != NO_COLLECTION;
+    }
+
+    public static Builder builder() {
+        return new AutoValue_NodeSnapshot.Builder()
+                .setLabeledById(0)
+                .setProperties(0)
+                .setActions(0)
+                .setCustomActions(ImmutableList.of())
+                .setCollectionRowCount(NO_COLLECTION)
+                .setCollectionColumnCount(NO_COLLECTION)
+                .setCollectionItemRowIndex(NO_COLLECTION)
+                .setCollectionItemColumnIndex(NO_COLLECTION)
+                .setLinks(ImmutableList.of())
+                .setLocales(ImmutableList.of())
+                .setChildCount(0);
+    }
+
+    /**
+     * Reads every captured property of {@code node} once.
+     *
+     * <p><strong>Note:</strong> Caller is responsible for recycling the node-argument.
+     */
+    public static NodeSnapshot create(AccessibilityNodeInfoCompat node) {
+        return create(node, new Rect());
+    }
+
+    /**
+     * Reads every captured property of {@code node} once, using {@code bounds} as scratch space for
+     * the bounds of the node so that callers walking a tree can reuse a single {@link Rect}.
+     *
+     * <p><strong>Note:</strong> Caller is responsible for recycling the node-argument.
+     */
+    public static NodeSnapshot create(AccessibilityNodeInfoCompat node, Rect bounds) {
+        Builder builder = builder()
+                .setHashCodeValue(node.hashCode())
+                .setWindowId(node.getWindowId())
+                .setViewIdResourceName(node.getViewIdResourceName())
+                .setChildCount(node.getChildCount());
+
+        CharSequence className = node.getClassName();
+        builder.setRole(className != null ? getSimpleName(className) : "??");
+        builder.setRoleDescription(className != null ? toStringOrNull(node.getRoleDescription()) : null);
+
+        builder.setText(trimmed(AccessibilityNodeInfoUtils.getText(node)));
+        builder.setContentDescription(trimmed(node.getContentDescription()));
+        builder.setHint(trimmed(node.getHintText()));
+        CharSequence paneTitle = node.getPaneTitle();
+        builder.setPaneTitle(TextUtils.isEmpty(paneTitle) ? null : paneTitle.toString());
+        builder.setError(toStringOrNull(node.getError()));
+        builder.setTooltip(toStringOrNull(node.getTooltipText()));
+        CharSequence state = node.getStateDescription();
+        builder.setStateDescription(
+                !TextUtils.isEmpty(state) && TextUtils.getTrimmedLength(state) > 0
+                        ? state.toString().trim()
+                        : null);
+
+        node.getBoundsInScreen(bounds);
+        builder.setLeft(bounds.left).setTop(bounds.top).setRight(bounds.right).setBottom(bounds.bottom);
+
+        int properties = 0;
+        if (node.isFocusable()) {
+            properties |= PROPERTY_FOCUSABLE;
+        }
+        if (node.isScreenReaderFocusable()) {
+            properties |= PROPERTY_SCREEN_READER_FOCUSABLE;
+        }
+        if (node.isFocused()) {
+            properties |= PROPERTY_FOCUSED;
+        }
+        if (node.isSelected()) {
+            properties |= PROPERTY_SELECTED;
+        }
+        if (node.isScrollable()) {
+            properties |= PROPERTY_SCROLLABLE;
+        }
+        if (node.isClickable()) {
+            properties |= PROPERTY_CLICKABLE;
+        }
+        if (node.isLongClickable()) {
+            properties |= PROPERTY_LONG_CLICKABLE;
+        }
+        if (node.isAccessibilityFocused()) {
+            properties |= PROPERTY_ACCESSIBILITY_FOCUSED;
+        }
+        if (node.isEnabled()) {
+            properties |= PROPERTY_ENABLED;
+        }
+        if (node.isVisibleToUser()) {
+            properties |= PROPERTY_VISIBLE;
+        }
+        if (node.isImportantForAccessibility()) {
+            properties |= PROPERTY_IMPORTANT;
+        }
+        if (node.isCheckable()) {
+            properties |= PROPERTY_CHECKABLE;
+        }
+        if (node.isChecked()) {
+            properties |= PROPERTY_CHECKED;
+        }
+        if (node.isContentInvalid()) {
+            properties |= PROPERTY_CONTENT_INVALID;
+        }
+        if (AccessibilityNodeInfoUtils.isHeading(node)) {
+            properties |= PROPERTY_HEADING;
+        }
+
+        AccessibilityNodeInfoCompat labeledBy = node.getLabeledBy();
+        if (labeledBy != null) {
+            properties |= PROPERTY_HAS_LABELED_BY;
+            CharSequence labeledByText = AccessibilityNodeInfoUtils.getText(labeledBy);
+            CharSequence labeledByContent = labeledBy.getContentDescription();
+            if (labeledByContent != null && labeledByContent.toString().trim().length() > 0) {
+                labeledByText = labeledByContent.toString().trim();
+            }
+            builder.setLabeledByText(toStringOrNull(labeledByText));
+            builder.setLabeledById(labeledBy.hashCode());
+            labeledBy.recycle();
+        }
+        builder.setProperties(properties);
+
+        if (node.getActions() != 0) {
+            int actions = 0;
+            ImmutableList.Builder<String> customActions = ImmutableList.builder();
+            List<AccessibilityActionCompat> actionList = node.getActionList();
+            for (int i = 0; i < actionList.size(); i++) {
+                AccessibilityActionCompat action = actionList.get(i);
+                CharSequence label = action.getLabel();
+                if (label != null && label.length() > 0) {
+                    customActions.add(label + " (custom)");
+                } else {
+                    actions |= actionBit(action.getId());
+                }
+            }
+            builder.setActions(actions).setCustomActions(customActions.build());
+        }
+
+        CollectionInfoCompat collectionInfo = node.getCollectionInfo();
+        if (collectionInfo != null) {
+            builder.setCollectionRowCount(collectionInfo.getRowCount())
+                    .setCollectionColumnCount(collectionInfo.getColumnCount());
+        }
+        CollectionItemInfoCompat collectionItemInfo = node.getCollectionItemInfo();
+        if (collectionItemInfo != null) {
+            builder.setCollectionItemRowIndex(collectionItemInfo.getRowIndex())
+                    .setCollectionItemColumnIndex(collectionItemInfo.getColumnIndex());
+        }
+
+        List<AccessibilityNodeInfoUtils.ClickableString> clickableStrings =
+                AccessibilityNodeInfoUtils.getNodeClickableStrings(node);
+        if (!clickableStrings.isEmpty()) {
+            ImmutableList.Builder<String> links = ImmutableList.builder();
+            for (AccessibilityNodeInfoUtils.ClickableString clickableString : clickableStrings) {
+                links.add(clickableString.string());
+            }
+            builder.setLinks(links.build());
+        }
+        List<AccessibilityNodeInfoUtils.LocaleString> localeStrings =
+                AccessibilityNodeInfoUtils.getNodeLocaleStrings(node);
+        if (!localeStrings.isEmpty()) {
+            ImmutableList.Builder<String> locales = ImmutableList.builder();
+            for (AccessibilityNodeInfoUtils.LocaleString localeString : localeStrings) {
+                Locale locale = localeString.localeSpan().getLocale();
+                locales.add(localeString.string() + " - " + (locale != null ? locale.toLanguageTag() : ""));
+            }
+            builder.setLocales(locales.build());
+        }
+        return builder.build();
+    }
+
+    private static int actionBit(int actionId) {
+        switch (actionId) {
+            case AccessibilityNodeInfoCompat.ACTION_FOCUS:
+                return ACTION_FOCUS;
+            case AccessibilityNodeInfoCompat.ACTION_ACCESSIBILITY_FOCUS:
+                return ACTION_ACCESSIBILITY_FOCUS;
+            case AccessibilityNodeInfoCompat.ACTION_CLEAR_ACCESSIBILITY_FOCUS:
+                return ACTION_CLEAR_ACCESSIBILITY_FOCUS;
+            case AccessibilityNodeInfoCompat.ACTION_SCROLL_BACKWARD:
+                return ACTION_SCROLL_BACKWARD;
+            case AccessibilityNodeInfoCompat.ACTION_SCROLL_FORWARD:
+                return ACTION_SCROLL_FORWARD;
+            case AccessibilityNodeInfoCompat.ACTION_CLICK:
+                return ACTION_CLICK;
+            case AccessibilityNodeInfoCompat.ACTION_LONG_CLICK:
+                return ACTION_LONG_CLICK;
+            case AccessibilityNodeInfoCompat.ACTION_EXPAND:
+                return ACTION_EXPAND;
+            case AccessibilityNodeInfoCompat.ACTION_COLLAPSE:
+                return ACTION_COLLAPSE;
+            default:
+                return 0;
+        }
+    }
+
+    private static String getSimpleName(CharSequence fullName) {
+        int dotIndex = TextUtils.lastIndexOf(fullName, '.');
+        return fullName.subSequence(dotIndex + 1, fullName.length()).toString();
+    }
+
+    @Nullable
+    private static String trimmed(@Nullable CharSequence value) {
+        return value == null ? null : value.toString().trim();
+    }
+
+    @Nullable
+    private static String toStringOrNull(@Nullable CharSequence value) {
+        return value == null ? null : value.toString();
+    }
+
+    @AutoValue.Builder
+    public abstract static class Builder {
+        public abstract Builder setHashCodeValue(int value);
+
+        public abstract Builder setWindowId(int value);
+
+        public abstract Builder setRole(String value);
+
+        public abstract Builder setRoleDescription(@Nullable String value);
+
+        public abstract Builder setViewIdResourceName(@Nullable String value);
+
+        public abstract Builder setText(@Nullable String value);
+
+        public abstract Builder setContentDescription(@Nullable String value);
+
+        public abstract Builder setHint(@Nullable String value);
+
+        public abstract Builder setPaneTitle(@Nullable String value);
+
+        public abstract Builder setError(@Nullable String value);
+
+        public abstract Builder setTooltip(@Nullable String value);
+
+        public abstract Builder setStateDescription(@Nullable String value);
+
+        public abstract Builder setLabeledByText(@Nullable String value);
+
+        public abstract Builder setLabeledById(int value);
+
+        public abstract Builder setLeft(int value);
+
+        public abstract Builder setTop(int value);
+
+        public abstract Builder setRight(int value);
+
+        public abstract Builder setBottom(int value);
+
+        public abstract Builder setProperties(int value);
+
+        public abstract Builder setActions(int value);
+
+        public abstract Builder setCustomActions(ImmutableList<String> value);
+
+        public abstract Builder setCollectionRowCount(int value);
+
+        public abstract Builder setCollectionColumnCount(int value);
+
+        public abstract Builder setCollectionItemRowIndex(int value);
+
+        public abstract Builder setCollectionItemColumnIndex(int value);
+
+        public abstract Builder setLinks(ImmutableList<String> value);
+
+        public abstract Builder setLocales(ImmutableList<String> value);
+
+        public abstract Builder setChildCount(int value);
+
+        public abstract NodeSnapshot build();
+    }
+}
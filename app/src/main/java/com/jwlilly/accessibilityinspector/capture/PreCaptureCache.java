@@ -0,0 +1,82 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Captures the tree in the background once the screen has been quiet for a while, so that a
+ * capture request that comes in later can be answered without waiting for a traversal.
+ *
+ * <p>Every window or content change event marks the cached capture stale and restarts the quiet
+ * period. The cached capture keeps the encodings made for the clients connected when it was
+ * taken, so a request from one of them is answered without encoding the tree again.
+ */
+public class PreCaptureCache {
+    private static final String LOG_TAG = "PreCaptureCache";
+    public static final long DEFAULT_QUIET_PERIOD_MS = 500;
+
+    private final CaptureExecutor executor;
+    private final CaptureExecutor.Command<EncodedTree> capture;
+    private final long quietPeriodMs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable preCapture = this::startPreCapture;
+
+    /** Counts the events seen so far; a cached capture is only valid for the count it was made at. */
+    private long generation = 0;
+    @Nullable private EncodedTree cached;
+    private long cachedGeneration = -1;
+
+    public PreCaptureCache(
+            CaptureExecutor executor, CaptureExecutor.Command<EncodedTree> capture, long quietPeriodMs) {
+        this.executor = executor;
+        this.capture = capture;
+        this.quietPeriodMs = quietPeriodMs;
+        handler.postDelayed(preCapture, quietPeriodMs);
+    }
+
+    /** Marks the cached capture stale and schedules a new one after the quiet period. */
+    public synchronized void onEvent() {
+        generation++;
+        cached = null;
+        handler.removeCallbacks(preCapture);
+        handler.postDelayed(preCapture, quietPeriodMs);
+    }
+
+    /** Returns the cached capture if nothing changed since it was made, or null otherwise. */
+    @Nullable
+    public synchronized EncodedTree get() {
+        return cachedGeneration == generation ? cached : null;
+    }
+
+    public void stop() {
+        handler.removeCallbacks(preCapture);
+        synchronized (this) {
+            cached = null;
+        }
+    }
+
+    private void startPreCapture() {
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+        }
+        executor.submit("preCapture", () -> {
+            EncodedTree tree = capture.run();
+            if (tree != null) {
+                store(startGeneration, tree);
+            }
+            return null;
+        });
+    }
+
+    private synchronized void store(long captureGeneration, EncodedTree tree) {
+        if (captureGeneration == generation) {
+            cached = tree;
+            cachedGeneration = captureGeneration;
+            Log.d(LOG_TAG, "capture cached");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import androidx.annotation.Nullable;
+
+/** The encodings a client can receive captures in. */
+public enum TreeFormat {
+    /** Nested JSON, sent as a text frame. The default. */
+    JSON("json"),
+    /** The tagged varint encoding of {@link BinaryTreeEncoder}, sent as a binary frame. */
+    BINARY("binary"),
+    /** The table of {@link ColumnarTreeEncoder}, sent as a text frame. */
+    COLUMNAR("columnar");
+
+    private final String name;
+
+    TreeFormat(String name) {
+        this.name = name;
+    }
+
+    /** Returns the name clients use for this format. */
+    public String formatName() {
+        return name;
+    }
+
+    /** Returns the format called {@code name}, or null if there is none. */
+    @Nullable
+    public static TreeFormat fromName(@Nullable String name) {
+        for (TreeFormat format : values()) {
+            if (format.name.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
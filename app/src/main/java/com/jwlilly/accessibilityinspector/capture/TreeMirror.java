@@ -0,0 +1,396 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.graphics.Rect;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
+
+import com.google.android.accessibility.utils.WindowEventInterpreter;
+import com.jwlilly.accessibilityinspector.AccessibilityInspector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An in-memory copy of the accessibility tree that is kept up to date from accessibility events, so
+ * that captures can be answered without walking the tree over IPC.
+ *
+ * <p>Window content changes refetch only the node the event came from: just the node itself when
+ * the event reports text, content description, state description or pane title changes, and its
+ * whole subtree otherwise. A window state change refetches its window. Windows that appear or
+ * disappear are picked up once {@link WindowEventInterpreter} reports that the windows are stable,
+ * or at the next capture if that comes first.
+ *
+ * <p>Events only note what changed, so the thread that delivers them never waits for IPC. The
+ * changes are applied on the mirror's own thread, or by the next capture if it comes first. Access
+ * to the mirrored windows is synchronized, so a capture can wait for the mirror thread, but event
+ * delivery never waits for either of them.
+ */
+public class TreeMirror {
+    private static final String LOG_TAG = "TreeMirror";
+
+    /** The events the service has to subscribe to while the mirror is in use. */
+    public static final int EVENT_TYPES =
+            AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+                    | AccessibilityEvent.TYPE_WINDOWS_CHANGED
+                    | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+
+    /** Content changes that leave the children of the source node as they were. */
+    private static final int NODE_ONLY_CHANGES =
+            AccessibilityEvent.CONTENT_CHANGE_TYPE_TEXT
+                    | AccessibilityEvent.CONTENT_CHANGE_TYPE_CONTENT_DESCRIPTION
+                    | AccessibilityEvent.CONTENT_CHANGE_TYPE_STATE_DESCRIPTION
+                    | AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_TITLE;
+
+    /**
+     * Content changes of one window that are kept before the window is recaptured instead, so that
+     * a burst of events cannot queue up without bound.
+     */
+    private static final int MAX_PENDING_CONTENT_CHANGES = 256;
+
+    private final AccessibilityInspector service;
+    private final WindowEventInterpreter windowEventInterpreter;
+    private final ExecutorService mirrorThread = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TreeMirror");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Integer, MirroredWindow> windows = new HashMap<>();
+    private boolean windowsChanged = true;
+    /** Guards {@link #pending} and {@link #applyScheduled}, and is never held during IPC. */
+    private final Object pendingLock = new Object();
+    private PendingChanges pending = new PendingChanges();
+    private boolean applyScheduled = false;
+
+    public TreeMirror(AccessibilityInspector service) {
+        this.service = service;
+        windowEventInterpreter = new WindowEventInterpreter(service);
+        windowEventInterpreter.addListener(
+                (interpretation, eventId) -> {
+                    if (interpretation.areWindowsStable()) {
+                        synchronized (pendingLock) {
+                            pending.windowsStable = true;
+                            scheduleApply();
+                        }
+                    }
+                });
+    }
+
+    /** Notes the change an event reports. Called on the thread that delivers events. */
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOWS_CHANGED:
+                synchronized (pendingLock) {
+                    pending.windowsChanged = true;
+                }
+                windowEventInterpreter.interpret(event, null);
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                synchronized (pendingLock) {
+                    pending.recapture(event.getWindowId());
+                    scheduleApply();
+                }
+                windowEventInterpreter.interpret(event, null);
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                // The source is looked up from a copy of the event on the mirror thread, since
+                // looking it up can take an IPC.
+                synchronized (pendingLock) {
+                    pending.contentChanged(event);
+                    scheduleApply();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Stops the mirror thread. The mirror is not updated afterwards. */
+    public void stop() {
+        mirrorThread.shutdownNow();
+        synchronized (pendingLock) {
+            pending.recycle();
+            pending = new PendingChanges();
+        }
+    }
+
+    /** Returns the mirrored tree, in the same window order as a capture. */
+    public synchronized CapturedTree snapshot() {
+        applyPendingChanges();
+        if (windowsChanged) {
+            updateWindows();
+        }
+        List<MirroredWindow> ordered = new ArrayList<>(windows.values());
+        Collections.sort(ordered, (a, b) -> Integer.compare(b.layer, a.layer));
+        List<CapturedNode> nodes = new ArrayList<>();
+        int index = 0;
+        for (MirroredWindow window : ordered) {
+            if (window.nodes.isEmpty()) {
+                continue;
+            }
+            nodes.add(window.nodes.get(0).withIndex(index++));
+            nodes.addAll(window.nodes.subList(1, window.nodes.size()));
+        }
+        return CapturedTree.of(nodes);
+    }
+
+    /** Makes sure the mirror thread applies the pending changes. Called with the pending lock. */
+    private void scheduleApply() {
+        if (applyScheduled) {
+            return;
+        }
+        applyScheduled = true;
+        try {
+            mirrorThread.execute(
+                    () -> {
+                        synchronized (TreeMirror.this) {
+                            applyPendingChanges();
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            // The mirror was stopped.
+        }
+    }
+
+    /** Applies the changes noted since the last time. Called with the monitor held. */
+    private void applyPendingChanges() {
+        PendingChanges changes;
+        synchronized (pendingLock) {
+            changes = pending;
+            pending = new PendingChanges();
+            applyScheduled = false;
+        }
+        try {
+            if (changes.windowsChanged) {
+                windowsChanged = true;
+            }
+            if (changes.windowsStable) {
+                updateWindows();
+            }
+            for (int windowId : changes.recapture) {
+                recaptureWindow(windowId);
+            }
+            // Content changes of windows that were recaptured are already left out.
+            for (List<AccessibilityEvent> events : changes.contentChanges.values()) {
+                for (AccessibilityEvent event : events) {
+                    onContentChanged(event);
+                }
+            }
+        } finally {
+            changes.recycle();
+        }
+    }
+
+    private void onContentChanged(AccessibilityEvent event) {
+        MirroredWindow window = windows.get(event.getWindowId());
+        if (window == null) {
+            windowsChanged = true;
+            return;
+        }
+        AccessibilityNodeInfo sourceInfo = event.getSource();
+        if (sourceInfo == null) {
+            return;
+        }
+        AccessibilityNodeInfoCompat source = AccessibilityNodeInfoCompat.wrap(sourceInfo);
+        try {
+            int position = window.positionOf(source.hashCode());
+            if (position < 0) {
+                recaptureWindow(window.windowId);
+                return;
+            }
+            int changeTypes = event.getContentChangeTypes();
+            if (changeTypes != 0 && (changeTypes & ~NODE_ONLY_CHANGES) == 0) {
+                refreshNode(window, position, source);
+            } else {
+                refetchSubtree(window, position, source);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "could not update mirror", e);
+            windows.remove(window.windowId);
+            windowsChanged = true;
+        } finally {
+            source.recycle();
+        }
+    }
+
+    private void refreshNode(MirroredWindow window, int position, AccessibilityNodeInfoCompat source) {
+        CapturedNode node = window.nodes.get(position);
+        window.nodes.set(position, node.withSnapshot(NodeSnapshot.create(source)));
+    }
+
+    private void refetchSubtree(MirroredWindow window, int position, AccessibilityNodeInfoCompat source) {
+        List<CapturedNode> nodes = window.nodes;
+        CapturedNode node = nodes.get(position);
+        int end = position + 1;
+        while (end < nodes.size() && nodes.get(end).depth > node.depth) {
+            end++;
+        }
+        NodeIdAssigner ids = new NodeIdAssigner(window.windowId);
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i <= position || i >= end) {
+                ids.reserve(nodes.get(i).id);
+            }
+        }
+        Rect bounds = new Rect();
+        List<CapturedNode> subtree = new ArrayList<>();
+        subtree.add(node.withSnapshot(NodeSnapshot.create(source, bounds)));
+        CapturedTree.captureChildren(
+                source, node.id, node.depth + 1, ids, subtree, new ArrayList<>(), bounds);
+        List<CapturedNode> updated = new ArrayList<>(nodes.size() - (end - position) + subtree.size());
+        updated.addAll(nodes.subList(0, position));
+        updated.addAll(subtree);
+        updated.addAll(nodes.subList(end, nodes.size()));
+        window.setNodes(updated);
+    }
+
+    private void recaptureWindow(int windowId) {
+        for (AccessibilityWindowInfo window : service.getWindows()) {
+            if (window != null && window.getId() == windowId) {
+                captureWindows(Collections.singletonList(window));
+                return;
+            }
+        }
+        windows.remove(windowId);
+    }
+
+    /** Drops windows that are gone and captures the ones that are new or were retitled. */
+    private void updateWindows() {
+        windowsChanged = false;
+        Set<Integer> current = new HashSet<>();
+        List<AccessibilityWindowInfo> changed = new ArrayList<>();
+        for (AccessibilityWindowInfo window : service.getWindows()) {
+            if (window == null) {
+                continue;
+            }
+            current.add(window.getId());
+            MirroredWindow mirrored = windows.get(window.getId());
+            if (mirrored == null || !TextUtils.equals(mirrored.title, window.getTitle())) {
+                changed.add(window);
+            } else {
+                mirrored.layer = window.getLayer();
+            }
+        }
+        windows.keySet().retainAll(current);
+        captureWindows(changed);
+    }
+
+    private void captureWindows(List<AccessibilityWindowInfo> toCapture) {
+        if (toCapture.isEmpty()) {
+            return;
+        }
+        List<Future<List<CapturedNode>>> futures =
+                service.getCaptureEngine().submit(toCapture, CapturedTree::captureWindow);
+        for (int i = 0; i < toCapture.size(); i++) {
+            AccessibilityWindowInfo window = toCapture.get(i);
+            List<CapturedNode> nodes;
+            try {
+                nodes = WindowCaptureEngine.await(futures.get(i));
+            } catch (InterruptedException e) {
+                // The capture that asked for a snapshot was cancelled. The windows that were not
+                // captured are dropped from the mirror, so the next snapshot captures them again.
+                WindowCaptureEngine.cancelAll(futures);
+                for (AccessibilityWindowInfo uncaptured : toCapture.subList(i, toCapture.size())) {
+                    windows.remove(uncaptured.getId());
+                }
+                windowsChanged = true;
+                Thread.currentThread().interrupt();
+                return;
+            }
+            MirroredWindow mirrored = new MirroredWindow(window.getId(), window.getLayer(), window.getTitle());
+            // Windows that are not captured, such as the navigation bar, are kept with no nodes so
+            // that they are not captured again at every window change.
+            mirrored.setNodes(nodes == null ? new ArrayList<>() : new ArrayList<>(nodes));
+            windows.put(window.getId(), mirrored);
+        }
+    }
+
+    private static final class MirroredWindow {
+        final int windowId;
+        final CharSequence title;
+        int layer;
+        /** The window followed by its nodes in pre-order, or empty if the window is not captured. */
+        List<CapturedNode> nodes;
+        /** Position in {@link #nodes} of the first node with each source hash code. */
+        private final Map<Integer, Integer> positions = new HashMap<>();
+
+        MirroredWindow(int windowId, int layer, CharSequence title) {
+            this.windowId = windowId;
+            this.layer = layer;
+            this.title = title;
+        }
+
+        void setNodes(List<CapturedNode> nodes) {
+            this.nodes = nodes;
+            positions.clear();
+            for (int i = 0; i < nodes.size(); i++) {
+                positions.putIfAbsent(nodes.get(i).snapshot.hashCodeValue(), i);
+            }
+        }
+
+        /** Returns the position of the node with {@code sourceHash}, or -1 if it is not mirrored. */
+        int positionOf(int sourceHash) {
+            Integer position = positions.get(sourceHash);
+            return position == null ? -1 : position;
+        }
+    }
+
+    /** Changes noted from events that the mirror has not applied yet. */
+    private static final class PendingChanges {
+        boolean windowsChanged;
+        boolean windowsStable;
+        final Set<Integer> recapture = new HashSet<>();
+        /** Copies of the content change events of each window, in the order they came in. */
+        final Map<Integer, List<AccessibilityEvent>> contentChanges = new HashMap<>();
+
+        void recapture(int windowId) {
+            recapture.add(windowId);
+            List<AccessibilityEvent> events = contentChanges.remove(windowId);
+            if (events != null) {
+                recycle(events);
+            }
+        }
+
+        void contentChanged(AccessibilityEvent event) {
+            int windowId = event.getWindowId();
+            if (recapture.contains(windowId)) {
+                return;
+            }
+            List<AccessibilityEvent> events = contentChanges.get(windowId);
+            if (events == null) {
+                events = new ArrayList<>();
+                contentChanges.put(windowId, events);
+            }
+            if (events.size() >= MAX_PENDING_CONTENT_CHANGES) {
+                recapture(windowId);
+                return;
+            }
+            events.add(AccessibilityEvent.obtain(event));
+        }
+
+        void recycle() {
+            for (List<AccessibilityEvent> events : contentChanges.values()) {
+                recycle(events);
+            }
+            contentChanges.clear();
+        }
+
+        private static void recycle(List<AccessibilityEvent> events) {
+            for (AccessibilityEvent event : events) {
+                event.recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import android.util.Log;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import androidx.annotation.Nullable;
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
+
+import com.google.android.accessibility.utils.AccessibilityNodeInfoUtils;
+import com.google.android.accessibility.utils.AccessibilityWindowInfoUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Captures every window from its own root on a bounded pool of worker threads. Windows are
+ * traversed concurrently, so a capture takes as long as the slowest window instead of the sum of
+ * all of them, and results are returned in window-layer order with the top-most window first.
+ */
+public class WindowCaptureEngine {
+    private static final String LOG_TAG = "WindowCaptureEngine";
+    private static final int MAX_THREADS = 4;
+    private static final long WINDOW_TIMEOUT_MS = 10000;
+
+    /** Captures a single window. The root is recycled by the engine once the task returns. */
+    public interface WindowTask<T> {
+        @Nullable
+        T capture(AccessibilityWindowInfo window, AccessibilityNodeInfoCompat root) throws Exception;
+    }
+
+    private final ExecutorService executor;
+
+    public WindowCaptureEngine() {
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "WindowCapture-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Returns a copy of {@code windows} sorted by layer, top-most window first. */
+    public static List<AccessibilityWindowInfo> inLayerOrder(@Nullable List<AccessibilityWindowInfo> windows) {
+        List<AccessibilityWindowInfo> ordered = new ArrayList<>();
+        if (windows == null) {
+            return ordered;
+        }
+        for (AccessibilityWindowInfo window : windows) {
+            if (window != null) {
+                ordered.add(window);
+            }
+        }
+        Collections.sort(ordered, (a, b) -> Integer.compare(b.getLayer(), a.getLayer()));
+        return ordered;
+    }
+
+    /**
+     * Starts capturing each of {@code windows} on the worker pool. The returned futures are in the
+     * same order as {@code windows}; a future resolves to null if the window has no root.
+     */
+    public <T> List<Future<T>> submit(List<AccessibilityWindowInfo> windows, WindowTask<T> task) {
+        List<Future<T>> futures = new ArrayList<>(windows.size());
+        for (AccessibilityWindowInfo window : windows) {
+            futures.add(executor.submit(() -> captureWindow(window, task)));
+        }
+        return futures;
+    }
+
+    /**
+     * Captures all windows concurrently and returns the non-null results in window-layer order.
+     * Throws if the calling thread is interrupted, rather than returning a partial capture.
+     */
+    public <T> List<T> captureAll(@Nullable List<AccessibilityWindowInfo> windows, WindowTask<T> task)
+            throws InterruptedException {
+        List<Future<T>> futures = submit(inLayerOrder(windows), task);
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                T result = await(future);
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+        } finally {
+            cancelAll(futures);
+        }
+        return results;
+    }
+
+    /**
+     * Waits for a window submitted through {@link #submit}, returning null if it failed or timed
+     * out. Throws if the calling thread is interrupted while waiting, after cancelling the window.
+     */
+    @Nullable
+    public static <T> T await(Future<T> future) throws InterruptedException {
+        try {
+            return future.get(WINDOW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "window capture failed", e.getCause());
+        } catch (TimeoutException e) {
+            Log.e(LOG_TAG, "window capture timed out");
+            future.cancel(true);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+        return null;
+    }
+
+    /** Cancels the windows in {@code futures} that are still queued or running. */
+    public static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /** Captures a single window on the calling thread. */
+    @Nullable
+    public static <T> T captureWindow(AccessibilityWindowInfo window, WindowTask<T> task) throws Exception {
+        AccessibilityNodeInfoCompat root = AccessibilityWindowInfoUtils.getRootCompat(window);
+        if (root == null) {
+            return null;
+        }
+        try {
+            return task.capture(window, root);
+        } finally {
+            AccessibilityNodeInfoUtils.recycleNodes(root);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
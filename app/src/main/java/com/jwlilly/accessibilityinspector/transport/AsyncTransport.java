@@ -0,0 +1,88 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import android.util.Log;
+
+import com.jwlilly.accessibilityinspector.ClientSocket;
+import com.jwlilly.accessibilityinspector.Payload;
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.http.WebSocket;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+
+/**
+ * The AndroidAsync web socket server. All sockets are served by the shared {@link
+ * AsyncServer#getDefault} reactor thread, and writes are posted to that thread.
+ */
+public class AsyncTransport implements InspectorTransport {
+    private AsyncHttpServer server;
+
+    @Override
+    public void start(int port, Listener listener) {
+        server = new AsyncHttpServer();
+        server.listen(AsyncServer.getDefault(), port);
+        server.websocket("/", (webSocket, request) -> {
+            String clientId = listener.onOpen(new AsyncClientSocket(webSocket));
+            webSocket.setStringCallback(s -> {
+                if(s != null) {
+                    listener.onMessage(clientId, s);
+                }
+            });
+
+            webSocket.setClosedCallback(ex -> {
+                try {
+                    if (ex != null)
+                        Log.e("SERVER", "An error occurred", ex);
+                } finally {
+                    listener.onClose(clientId);
+                }
+            });
+
+            webSocket.setEndCallback(ex -> Log.d("SERVER", "ended: " + (ex == null ? null : ex.getMessage())));
+        });
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        AsyncServer.getDefault().post(task);
+    }
+
+    @Override
+    public void stop() {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** A client connected to the AndroidAsync web socket server. */
+    private static class AsyncClientSocket implements ClientSocket {
+        private final WebSocket socket;
+
+        AsyncClientSocket(WebSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void send(Payload payload) {
+            if (payload.isBinary())
+                socket.send(payload.bytes());
+            else
+                // AndroidAsync only sends text frames from strings.
+                socket.send(payload.text());
+        }
+
+        @Override
+        public boolean isBuffering() {
+            return socket.isBuffering();
+        }
+
+        @Override
+        public void setDrainedCallback(Runnable callback) {
+            socket.setWriteableCallback(callback::run);
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+}
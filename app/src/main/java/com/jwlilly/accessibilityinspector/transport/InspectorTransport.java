@@ -0,0 +1,32 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import com.jwlilly.accessibilityinspector.ClientSocket;
+
+import java.io.IOException;
+
+/**
+ * A web socket server that clients connect to. The socket service only sees clients as {@link
+ * ClientSocket}s and messages as strings, so the server library behind it can be swapped.
+ */
+public interface InspectorTransport {
+    /** Receives connection events. Called on the transport's own threads. */
+    interface Listener {
+        /** Called when a client connects. Returns the id the client is known by from now on. */
+        String onOpen(ClientSocket socket);
+
+        void onMessage(String clientId, String message);
+
+        void onClose(String clientId);
+    }
+
+    void start(int port, Listener listener) throws IOException;
+
+    /**
+     * Runs {@code task}, which writes to client sockets, on a thread where that is allowed. Tasks
+     * run in the order they were passed in.
+     */
+    void execute(Runnable task);
+
+    /** Closes every connection and stops listening. */
+    void stop();
+}
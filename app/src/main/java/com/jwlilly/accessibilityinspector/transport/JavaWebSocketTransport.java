@@ -0,0 +1,299 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.jwlilly.accessibilityinspector.ClientSocket;
+import com.jwlilly.accessibilityinspector.Payload;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.ExtensionRequestData;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.TextFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Java-WebSocket server. It runs its own selector thread and a configurable number of decoder
+ * threads, and disables Nagle's algorithm so small messages such as pings and deltas go out
+ * immediately. Connections negotiate permessage-deflate with context takeover when the client
+ * offers it, see {@link ContextTakeoverDeflate}, and are served uncompressed otherwise.
+ *
+ * <p>Java-WebSocket has no callback for when a connection has written out its buffered frames, so
+ * a connection counts as buffering once it holds {@link #MAX_BUFFERED_FRAMES} unwritten frames, and
+ * is polled until it has drained.
+ */
+public class JavaWebSocketTransport implements InspectorTransport {
+    private static final String LOG_TAG = "JavaWebSocketTransport";
+    private static final long DRAIN_POLL_MS = 10;
+    private static final int STOP_TIMEOUT_MS = 1000;
+    private static final int CONNECTION_LOST_TIMEOUT_S = 30;
+    static final int MAX_BUFFERED_FRAMES = 16;
+
+    private final int decoders;
+    private final Set<JavaClientSocket> waitingForDrain = ConcurrentHashMap.newKeySet();
+    private Server server;
+    private ScheduledExecutorService drainPoller;
+
+    /** @param decoders the number of threads that decode incoming frames */
+    public JavaWebSocketTransport(int decoders) {
+        this.decoders = Math.max(1, decoders);
+    }
+
+    @Override
+    public void start(int port, Listener listener) {
+        server = new Server(new InetSocketAddress(port), decoders, listener);
+        server.setTcpNoDelay(true);
+        server.setReuseAddr(true);
+        server.setConnectionLostTimeout(CONNECTION_LOST_TIMEOUT_S);
+        server.start();
+        drainPoller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WebSocketDrain");
+            thread.setDaemon(true);
+            return thread;
+        });
+        drainPoller.scheduleWithFixedDelay(
+                this::pollDrains, DRAIN_POLL_MS, DRAIN_POLL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Java-WebSocket connections can be written from any thread. */
+    @Override
+    public void execute(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void stop() {
+        if (drainPoller != null) {
+            drainPoller.shutdownNow();
+            drainPoller = null;
+        }
+        waitingForDrain.clear();
+        if (server != null) {
+            try {
+                server.stop(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            server = null;
+        }
+    }
+
+    private void pollDrains() {
+        for (JavaClientSocket socket : waitingForDrain) {
+            if (!bufferFull(socket.connection) || !socket.connection.isOpen()) {
+                waitingForDrain.remove(socket);
+                if (socket.connection.isOpen() && socket.drainedCallback != null) {
+                    socket.drainedCallback.run();
+                }
+            }
+        }
+    }
+
+    /** Returns whether {@code connection} holds too many unwritten frames to take another one. */
+    static boolean bufferFull(WebSocket connection) {
+        if (connection instanceof WebSocketImpl) {
+            return ((WebSocketImpl) connection).outQueue.size() >= MAX_BUFFERED_FRAMES;
+        }
+        return connection.hasBufferedData();
+    }
+
+    /** Returns the protocol draft with permessage-deflate and context takeover. */
+    static Draft_6455 deflateDraft() {
+        return new Draft_6455(new ContextTakeoverDeflate());
+    }
+
+    /**
+     * Returns a text frame over {@code utf8}, so that a payload that is already UTF-8 is sent without
+     * decoding it to a string and encoding it again. Frames sent by a client must be masked.
+     */
+    static TextFrame textFrame(byte[] utf8, boolean masked) {
+        TextFrame frame = new TextFrame();
+        frame.setPayload(ByteBuffer.wrap(utf8));
+        frame.setTransferemasked(masked);
+        return frame;
+    }
+
+    private static List<Draft> drafts() {
+        return Collections.singletonList(deflateDraft());
+    }
+
+    /**
+     * permessage-deflate that keeps the compression context from one message to the next unless the
+     * peer asks for it to be reset. The library's own extension always answers a client with
+     * server_no_context_takeover, offers both no_context_takeover parameters to a server, and loses
+     * its settings in {@link #copyInstance}, which every connection is negotiated on.
+     *
+     * <p>The library reads {@code serverNoContextTakeover} as "reset the deflater after each
+     * message" and {@code clientNoContextTakeover} as "reset the inflater", whichever end of the
+     * connection it is on, so a client sets them from the opposite parameters.
+     */
+    static final class ContextTakeoverDeflate extends PerMessageDeflateExtension {
+        private static final String NAME = "permessage-deflate";
+        private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+        private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+
+        ContextTakeoverDeflate() {
+            setServerNoContextTakeover(false);
+            setClientNoContextTakeover(false);
+        }
+
+        @Override
+        public boolean acceptProvidedExtensionAsServer(String inputExtension) {
+            Map<String, String> parameters = parameters(inputExtension);
+            if (parameters == null) {
+                return false;
+            }
+            setServerNoContextTakeover(parameters.containsKey(SERVER_NO_CONTEXT_TAKEOVER));
+            setClientNoContextTakeover(parameters.containsKey(CLIENT_NO_CONTEXT_TAKEOVER));
+            return true;
+        }
+
+        @Override
+        public String getProvidedExtensionAsServer() {
+            return NAME
+                    + (isServerNoContextTakeover() ? "; " + SERVER_NO_CONTEXT_TAKEOVER : "")
+                    + (isClientNoContextTakeover() ? "; " + CLIENT_NO_CONTEXT_TAKEOVER : "");
+        }
+
+        @Override
+        public boolean acceptProvidedExtensionAsClient(String inputExtension) {
+            Map<String, String> parameters = parameters(inputExtension);
+            if (parameters == null) {
+                return false;
+            }
+            setServerNoContextTakeover(parameters.containsKey(CLIENT_NO_CONTEXT_TAKEOVER));
+            setClientNoContextTakeover(parameters.containsKey(SERVER_NO_CONTEXT_TAKEOVER));
+            return true;
+        }
+
+        @Override
+        public String getProvidedExtensionAsClient() {
+            return NAME;
+        }
+
+        @Override
+        public IExtension copyInstance() {
+            ContextTakeoverDeflate copy = new ContextTakeoverDeflate();
+            copy.setServerNoContextTakeover(isServerNoContextTakeover());
+            copy.setClientNoContextTakeover(isClientNoContextTakeover());
+            return copy;
+        }
+
+        /** Returns the parameters of the first permessage-deflate entry in a header, or null. */
+        @Nullable
+        private static Map<String, String> parameters(String header) {
+            for (String extension : header.split(",")) {
+                ExtensionRequestData data = ExtensionRequestData.parseExtensionRequest(extension);
+                if (NAME.equalsIgnoreCase(data.getExtensionName())) {
+                    return data.getExtensionParameters();
+                }
+            }
+            return null;
+        }
+    }
+
+    private class Server extends WebSocketServer {
+        private final Listener listener;
+
+        Server(InetSocketAddress address, int decoders, Listener listener) {
+            super(address, decoders, drafts());
+            this.listener = listener;
+        }
+
+        @Override
+        public void onOpen(WebSocket connection, ClientHandshake handshake) {
+            connection.setAttachment(listener.onOpen(new JavaClientSocket(connection)));
+        }
+
+        @Override
+        public void onMessage(WebSocket connection, String message) {
+            String clientId = connection.getAttachment();
+            if (clientId != null) {
+                listener.onMessage(clientId, message);
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket connection, ByteBuffer message) {
+            // Clients only send commands, which are text.
+        }
+
+        @Override
+        public void onClose(WebSocket connection, int code, String reason, boolean remote) {
+            String clientId = connection.getAttachment();
+            if (clientId != null) {
+                listener.onClose(clientId);
+            }
+        }
+
+        @Override
+        public void onError(WebSocket connection, Exception e) {
+            Log.e(LOG_TAG, "An error occurred", e);
+        }
+
+        @Override
+        public void onStart() {
+            Log.d(LOG_TAG, "listening on " + getPort());
+        }
+    }
+
+    /** A client connected to the Java-WebSocket server. */
+    private class JavaClientSocket implements ClientSocket {
+        final WebSocket connection;
+        volatile Runnable drainedCallback;
+
+        JavaClientSocket(WebSocket connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void send(Payload payload) {
+            try {
+                if (payload.isBinary()) {
+                    connection.send(payload.bytes());
+                } else {
+                    connection.sendFrame(textFrame(payload.bytes(), false));
+                }
+            } catch (WebsocketNotConnectedException e) {
+                // The client is gone; onClose removes it.
+            }
+        }
+
+        @Override
+        public boolean isBuffering() {
+            boolean buffering = bufferFull(connection);
+            if (buffering) {
+                waitingForDrain.add(this);
+            }
+            return buffering;
+        }
+
+        @Override
+        public void setDrainedCallback(Runnable callback) {
+            drainedCallback = callback;
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+    }
+}
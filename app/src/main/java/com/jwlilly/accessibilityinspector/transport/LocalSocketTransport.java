@@ -0,0 +1,257 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import com.jwlilly.accessibilityinspector.ClientSocket;
+import com.jwlilly.accessibilityinspector.Payload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the protocol on an abstract unix domain socket instead of a web socket, so a host can
+ * reach it with {@code adb forward tcp:38302 localabstract:a11y-inspector} without going through a
+ * TCP stack on the device or an HTTP upgrade.
+ *
+ * <p>Messages in both directions are framed as one type byte, {@link #FRAME_TEXT} or {@link
+ * #FRAME_BINARY}, a four byte big-endian length and that many bytes of payload; text is UTF-8. The
+ * messages themselves are the same as on the web socket.
+ *
+ * <p>Each client has a writer thread, so its sockets can be written from any thread and the
+ * transport can run next to another one. {@link #stop} closes every client that is still
+ * connected.
+ */
+public class LocalSocketTransport implements InspectorTransport {
+    private static final String LOG_TAG = "LocalSocketTransport";
+    public static final String DEFAULT_NAME = "a11y-inspector";
+    public static final int FRAME_TEXT = 0;
+    public static final int FRAME_BINARY = 1;
+    /** Largest frame a client may send. Commands are small. */
+    private static final int MAX_INCOMING_FRAME = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private LocalServerSocket server;
+    private Thread acceptThread;
+    private volatile boolean stopped = false;
+    private final Set<LocalClientSocket> connected = ConcurrentHashMap.newKeySet();
+
+    /** @param name the name of the socket in the abstract namespace */
+    public LocalSocketTransport(String name) {
+        this.name = name;
+    }
+
+    /** Starts listening. {@code port} is not used; the socket is known by its name. */
+    @Override
+    public void start(int port, Listener listener) throws IOException {
+        server = new LocalServerSocket(name);
+        acceptThread = new Thread(() -> accept(listener), "LocalSocketAccept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.d(LOG_TAG, "listening on localabstract:" + name);
+    }
+
+    /** Local sockets can be written from any thread. */
+    @Override
+    public void execute(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        if (server == null) {
+            return;
+        }
+        // accept() does not return when the server socket is closed, so connect once to wake it.
+        try (LocalSocket wakeUp = new LocalSocket()) {
+            wakeUp.connect(new LocalSocketAddress(name));
+        } catch (IOException e) {
+            // The accept thread already stopped.
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not close the server socket", e);
+        }
+        server = null;
+        for (LocalClientSocket client : connected) {
+            client.close();
+        }
+    }
+
+    private void accept(Listener listener) {
+        while (!stopped) {
+            LocalSocket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (!stopped) {
+                    Log.e(LOG_TAG, "accept failed", e);
+                }
+                return;
+            }
+            if (stopped) {
+                closeQuietly(socket);
+                return;
+            }
+            LocalClientSocket client = new LocalClientSocket(socket);
+            connected.add(client);
+            client.start(listener);
+        }
+    }
+
+    private static void closeQuietly(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to clean up.
+        }
+    }
+
+    /** A client connected to the local socket, with a reader and a writer thread. */
+    private class LocalClientSocket implements ClientSocket {
+        private final LocalSocket socket;
+        private final BlockingQueue<Payload> outgoing = new LinkedBlockingQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile Runnable drainedCallback;
+        private volatile boolean waitingForDrain = false;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private Thread writer;
+        private volatile Listener listener;
+        private volatile String clientId;
+
+        LocalClientSocket(LocalSocket socket) {
+            this.socket = socket;
+        }
+
+        void start(Listener listener) {
+            clientId = listener.onOpen(this);
+            // Set once the client has an id, so that a close reports the id it was opened with.
+            this.listener = listener;
+            writer = new Thread(this::write, "LocalSocketWriter-" + clientId);
+            writer.setDaemon(true);
+            writer.start();
+            Thread reader = new Thread(this::read, "LocalSocketReader-" + clientId);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read() {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE))) {
+                while (!closed.get()) {
+                    int type = in.readUnsignedByte();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_INCOMING_FRAME) {
+                        Log.w(LOG_TAG, clientId + " sent a frame of " + length + " bytes");
+                        break;
+                    }
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    if (type == FRAME_TEXT) {
+                        listener.onMessage(clientId, new String(frame, StandardCharsets.UTF_8));
+                    }
+                }
+            } catch (EOFException e) {
+                // The client disconnected.
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    Log.e(LOG_TAG, "read failed", e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void write() {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+                while (!closed.get()) {
+                    Payload payload = outgoing.take();
+                    byte[] bytes = payload.bytes();
+                    out.writeByte(payload.isBinary() ? FRAME_BINARY : FRAME_TEXT);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    if (outgoing.isEmpty()) {
+                        out.flush();
+                    }
+                    pending.decrementAndGet();
+                    if (waitingForDrain && !isBuffering()) {
+                        waitingForDrain = false;
+                        Runnable callback = drainedCallback;
+                        if (callback != null) {
+                            callback.run();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    Log.e(LOG_TAG, "write failed", e);
+                }
+                close();
+            }
+        }
+
+        @Override
+        public void send(Payload payload) {
+            if (closed.get()) {
+                return;
+            }
+            pending.incrementAndGet();
+            outgoing.add(payload);
+        }
+
+        @Override
+        public boolean isBuffering() {
+            boolean buffering = pending.get() >= JavaWebSocketTransport.MAX_BUFFERED_FRAMES;
+            if (buffering) {
+                waitingForDrain = true;
+            }
+            return buffering;
+        }
+
+        @Override
+        public void setDrainedCallback(Runnable callback) {
+            drainedCallback = callback;
+        }
+
+        /** Closes the socket and reports the close to the listener, once. */
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            connected.remove(this);
+            outgoing.clear();
+            if (writer != null) {
+                writer.interrupt();
+            }
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // Already shut down.
+            }
+            closeQuietly(socket);
+            if (listener != null) {
+                listener.onClose(clientId);
+            }
+        }
+    }
+}
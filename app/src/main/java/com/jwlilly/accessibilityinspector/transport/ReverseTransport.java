@@ -0,0 +1,313 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.jwlilly.accessibilityinspector.ClientSocket;
+import com.jwlilly.accessibilityinspector.Payload;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connects out to a web socket server on a host, instead of waiting for a host to connect in. A
+ * host can then serve many devices without an adb forward per device.
+ *
+ * <p>The host is seen as a single client. Every connection starts with a hello message that
+ * identifies the device and the session:
+ *
+ * <pre>
+ * {"message":"hello","session":"…","resumed":false,"device":{"id":"…","model":"…",…}}
+ * </pre>
+ *
+ * When the connection drops, the transport reconnects with exponential backoff and resumes the
+ * session: the host keeps its client id, format and compression settings, and messages queued in
+ * the meantime are sent once the connection is back, with {@code "resumed":true} in the hello.
+ * Messages that were already written to the old connection may have been lost with it. If the
+ * queue outgrows its budget while the host is away, the session ends and the next connection
+ * starts a new one.
+ */
+public class ReverseTransport implements InspectorTransport {
+    private static final String LOG_TAG = "ReverseTransport";
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 500;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30_000;
+    private static final long DRAIN_POLL_MS = 10;
+    private static final int CONNECTION_LOST_TIMEOUT_S = 30;
+
+    private final URI url;
+    private final JSONObject device;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private ScheduledExecutorService scheduler;
+    private Listener listener;
+    private volatile boolean stopped = false;
+    /** Failed connection attempts since the last successful one. */
+    private volatile int attempts = 0;
+    @Nullable private volatile Connection connection;
+    @Nullable private volatile Session session;
+
+    /**
+     * @param url the host's web socket server, such as {@code ws://192.168.1.20:38301/}
+     * @param device the identity of this device, sent to the host in every hello message
+     */
+    public ReverseTransport(URI url, JSONObject device) {
+        this(url, device, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    public ReverseTransport(URI url, JSONObject device, long initialBackoffMs, long maxBackoffMs) {
+        this.url = url;
+        this.device = device;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    /** Starts connecting to the host. {@code port} is not used, since nothing listens locally. */
+    @Override
+    public void start(int port, Listener listener) {
+        this.listener = listener;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ReverseTransport");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(
+                this::pollDrain, DRAIN_POLL_MS, DRAIN_POLL_MS, TimeUnit.MILLISECONDS);
+        scheduler.execute(this::connect);
+    }
+
+    /** Java-WebSocket connections can be written from any thread. */
+    @Override
+    public void execute(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        Connection current = connection;
+        if (current != null) {
+            current.close();
+        }
+        connection = null;
+        Session ended = session;
+        if (ended != null) {
+            ended.close();
+        }
+    }
+
+    /** Returns whether the transport is connected to the host. */
+    boolean isConnected() {
+        Session current = session;
+        Connection open = current == null ? null : current.connection;
+        return open != null && open.isOpen();
+    }
+
+    /**
+     * Returns the delay before reconnect attempt {@code attempt}, counted from 0: {@code
+     * initialMs} doubled for every earlier attempt and capped at {@code maxMs}, less a random part
+     * of up to half, so that devices that lost the host together don't all come back at once.
+     */
+    static long backoffMs(int attempt, long initialMs, long maxMs) {
+        long delay = initialMs << Math.min(attempt, 30);
+        if (delay <= 0 || delay > maxMs) {
+            delay = maxMs;
+        }
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void connect() {
+        if (stopped) {
+            return;
+        }
+        Connection next = new Connection(url);
+        connection = next;
+        next.setTcpNoDelay(true);
+        next.setConnectionLostTimeout(CONNECTION_LOST_TIMEOUT_S);
+        next.connect();
+    }
+
+    private void scheduleReconnect() {
+        if (stopped) {
+            return;
+        }
+        long delay = backoffMs(attempts++, initialBackoffMs, maxBackoffMs);
+        Log.d(LOG_TAG, "reconnecting in " + delay + " ms");
+        try {
+            scheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The scheduler was shut down by stop().
+        }
+    }
+
+    private void pollDrain() {
+        Session current = session;
+        if (current != null && current.waitingForDrain && !current.isBuffering()) {
+            current.waitingForDrain = false;
+            Runnable callback = current.drainedCallback;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+
+    /** Called on the connection's thread once the web socket handshake is done. */
+    private void onConnected(Connection opened) {
+        Session current = session;
+        boolean resumed = current != null;
+        if (!resumed) {
+            // The session has no connection yet, so nothing is sent to it before the hello.
+            current = new Session();
+            session = current;
+            current.clientId = listener.onOpen(current);
+        }
+        try {
+            JSONObject hello = new JSONObject();
+            hello.put("message", "hello");
+            hello.put("session", current.id);
+            hello.put("resumed", resumed);
+            hello.put("device", device);
+            opened.send(hello.toString());
+        } catch (JSONException | WebsocketNotConnectedException e) {
+            Log.e(LOG_TAG, "could not send hello", e);
+            opened.close();
+            return;
+        }
+        attempts = 0;
+        current.connection = opened;
+        current.waitingForDrain = true;
+        Log.d(LOG_TAG, "session " + current.id + (resumed ? " resumed" : " started"));
+    }
+
+    /** Called on the connection's thread when it closed or could not be opened. */
+    private void onDisconnected(Connection closed) {
+        Session current = session;
+        if (current != null && current.connection == closed) {
+            current.connection = null;
+        }
+        if (!stopped && connection == closed) {
+            scheduleReconnect();
+        }
+    }
+
+    /** One attempt to connect to the host. */
+    private class Connection extends WebSocketClient {
+        Connection(URI url) {
+            super(url, JavaWebSocketTransport.deflateDraft());
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            onConnected(this);
+        }
+
+        @Override
+        public void onMessage(String message) {
+            Session current = session;
+            if (current != null && current.clientId != null && current.connection == this) {
+                listener.onMessage(current.clientId, message);
+            }
+        }
+
+        @Override
+        public void onMessage(ByteBuffer message) {
+            // The host only sends commands, which are text.
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            Log.d(LOG_TAG, "disconnected: " + code + " " + reason);
+            onDisconnected(this);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            Log.e(LOG_TAG, "connection error", e);
+        }
+    }
+
+    /**
+     * The host as a client of the socket service. It outlives single connections: while there is
+     * no connection it reports that it is buffering, so messages wait in its queue.
+     */
+    private class Session implements ClientSocket {
+        final String id = UUID.randomUUID().toString();
+        volatile String clientId;
+        @Nullable volatile Connection connection;
+        volatile Runnable drainedCallback;
+        volatile boolean waitingForDrain = false;
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        @Override
+        public void send(Payload payload) {
+            Connection current = connection;
+            if (current == null) {
+                return;
+            }
+            try {
+                if (payload.isBinary()) {
+                    current.send(payload.bytes());
+                } else {
+                    current.sendFrame(JavaWebSocketTransport.textFrame(payload.bytes(), true));
+                }
+            } catch (WebsocketNotConnectedException e) {
+                // The connection dropped; the transport reconnects.
+            }
+        }
+
+        @Override
+        public boolean isBuffering() {
+            Connection current = connection;
+            boolean buffering = current == null
+                    || !current.isOpen()
+                    || JavaWebSocketTransport.bufferFull(current.getConnection());
+            if (buffering) {
+                waitingForDrain = true;
+            }
+            return buffering;
+        }
+
+        @Override
+        public void setDrainedCallback(Runnable callback) {
+            drainedCallback = callback;
+        }
+
+        /**
+         * Ends the session, which the socket service does when it gave up on the host, and reports
+         * the close to the listener once, like the server transports do.
+         */
+        @Override
+        public void close() {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            if (session == this) {
+                session = null;
+            }
+            Connection current = connection;
+            connection = null;
+            if (current != null) {
+                current.close();
+            }
+            if (clientId != null && listener != null) {
+                listener.onClose(clientId);
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import com.jwlilly.accessibilityinspector.SessionRecorder;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Serves a session recorded by {@link SessionRecorder} over the same web socket protocol as the
+ * service, without a device. Every client that connects is sent the recorded messages in order,
+ * either at the recorded pace scaled by a speed factor or, with a speed of 0, as fast as it reads
+ * them, followed by {@code {"replay":"end","messages":…,"elapsedMs":…}}.
+ *
+ * <p>The recorded commands are not replayed: clients can send commands, but only {@code ping} is
+ * answered, and {@code compression} with {@code {"compression":"none"}}, since the recorded
+ * messages are served as they were recorded. The server negotiates permessage-deflate like {@link
+ * JavaWebSocketTransport}.
+ *
+ * <p>The class uses no Android classes, so the same replay runs on a desktop JVM through {@link
+ * #main}, with Java-WebSocket, its slf4j dependency and org.json on the class path. Benchmarks and
+ * load tests of clients then need no device at all.
+ */
+public class SessionReplayServer {
+    public static final int DEFAULT_PORT = 38301;
+    private static final long DRAIN_POLL_MS = 10;
+    private static final int START_TIMEOUT_S = 10;
+    private static final int STOP_TIMEOUT_MS = 1000;
+
+    private final List<Record> messages = new ArrayList<>();
+    private final double speed;
+    private final Map<WebSocket, Thread> replays = new ConcurrentHashMap<>();
+    private final AtomicInteger nextReplay = new AtomicInteger(1);
+    private Server server;
+
+    /**
+     * @param records the records of a session, as returned by {@link #load}
+     * @param speed how much faster than recorded to replay, or 0 to replay as fast as possible
+     */
+    public SessionReplayServer(List<Record> records, double speed) {
+        for (Record record : records) {
+            if (record.type != SessionRecorder.TYPE_COMMAND) {
+                messages.add(record);
+            }
+        }
+        this.speed = speed;
+    }
+
+    /** Reads the records of a session file. */
+    public static List<Record> load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), 64 * 1024), 64 * 1024))) {
+            byte[] magic = new byte[SessionRecorder.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, SessionRecorder.MAGIC)) {
+                throw new IOException(file + " is not a session recording");
+            }
+            int version = in.readInt();
+            if (version != SessionRecorder.VERSION) {
+                throw new IOException("unsupported session recording version " + version);
+            }
+            in.readLong();
+            List<Record> records = new ArrayList<>();
+            while (true) {
+                int type;
+                try {
+                    type = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    return records;
+                }
+                long timeMicros = in.readLong();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                records.add(new Record(type, timeMicros, bytes));
+            }
+        }
+    }
+
+    /** Starts listening on {@code port} and returns once clients can connect. */
+    public void start(int port) throws IOException, InterruptedException {
+        Server starting = new Server(new InetSocketAddress(port));
+        server = starting;
+        starting.start();
+        if (!starting.started.await(START_TIMEOUT_S, TimeUnit.SECONDS) || starting.failure != null) {
+            stop();
+            throw new IOException("could not listen on port " + port, starting.failure);
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        if (server == null) {
+            return;
+        }
+        server.stop(STOP_TIMEOUT_MS);
+        server = null;
+        for (Thread replay : replays.values()) {
+            replay.interrupt();
+        }
+    }
+
+    /** Sends the recorded messages to one client. Runs on the client's own thread. */
+    private void replay(WebSocket connection) {
+        long start = System.nanoTime();
+        long firstMicros = messages.isEmpty() ? 0 : messages.get(0).timeMicros;
+        int sent = 0;
+        try {
+            for (Record message : messages) {
+                if (speed > 0) {
+                    long due = start + (long) ((message.timeMicros - firstMicros) * 1000 / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                // Like the service, hand the socket no more than it is ready to write.
+                while (JavaWebSocketTransport.bufferFull(connection) && connection.isOpen()) {
+                    Thread.sleep(DRAIN_POLL_MS);
+                }
+                if (!connection.isOpen()) {
+                    return;
+                }
+                if (message.type == SessionRecorder.TYPE_BINARY) {
+                    connection.send(message.bytes);
+                } else {
+                    connection.send(new String(message.bytes, StandardCharsets.UTF_8));
+                }
+                sent++;
+            }
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            connection.send(
+                    "{\"replay\":\"end\",\"messages\":" + sent + ",\"elapsedMs\":" + elapsedMs + "}");
+        } catch (InterruptedException | WebsocketNotConnectedException e) {
+            // The server stopped or the client left.
+        } finally {
+            replays.remove(connection);
+        }
+    }
+
+    /**
+     * Replays a session file: {@code SessionReplayServer <file> [--port <port>] [--speed <factor>]
+     * [--fast]}.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println(
+                    "usage: SessionReplayServer <file> [--port <port>] [--speed <factor>] [--fast]");
+            System.exit(2);
+        }
+        int port = DEFAULT_PORT;
+        double speed = 1;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                case "--fast":
+                    speed = 0;
+                    break;
+                default:
+                    System.err.println("unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        List<Record> records = load(new File(args[0]));
+        SessionReplayServer replayServer = new SessionReplayServer(records, speed);
+        replayServer.start(port);
+        System.out.println("replaying " + replayServer.messages.size() + " messages on port " + port
+                + (speed > 0 ? " at " + speed + "x" : " as fast as possible"));
+    }
+
+    /** One record of a session file. */
+    public static final class Record {
+        /**
+         * {@link SessionRecorder#TYPE_COMMAND}, {@link SessionRecorder#TYPE_TEXT} or {@link
+         * SessionRecorder#TYPE_BINARY}.
+         */
+        public final int type;
+        /** When the record was made, in microseconds since the recording started. */
+        public final long timeMicros;
+        public final byte[] bytes;
+
+        public Record(int type, long timeMicros, byte[] bytes) {
+            this.type = type;
+            this.timeMicros = timeMicros;
+            this.bytes = bytes;
+        }
+    }
+
+    private class Server extends WebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile Exception failure;
+
+        Server(InetSocketAddress address) {
+            super(address, Collections.singletonList(JavaWebSocketTransport.deflateDraft()));
+            setReuseAddr(true);
+        }
+
+        @Override
+        public void onOpen(WebSocket connection, ClientHandshake handshake) {
+            Thread replay = new Thread(
+                    () -> replay(connection), "SessionReplay-" + nextReplay.getAndIncrement());
+            replay.setDaemon(true);
+            replays.put(connection, replay);
+            replay.start();
+        }
+
+        @Override
+        public void onClose(WebSocket connection, int code, String reason, boolean remote) {
+            Thread replay = replays.remove(connection);
+            if (replay != null) {
+                replay.interrupt();
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket connection, String message) {
+            String command;
+            try {
+                command = new JSONObject(message).optString("message");
+            } catch (JSONException e) {
+                return;
+            }
+            if ("ping".equalsIgnoreCase(command)) {
+                connection.send("{\"message\":\"pong\"}");
+            } else if ("compression".equalsIgnoreCase(command)) {
+                connection.send("{\"compression\":\"none\"}");
+            }
+        }
+
+        @Override
+        public void onError(WebSocket connection, Exception e) {
+            if (connection == null) {
+                failure = e;
+                started.countDown();
+            }
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+}
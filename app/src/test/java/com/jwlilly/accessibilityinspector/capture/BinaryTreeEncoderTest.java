@@ -0,0 +1,219 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.ITEM;
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.LIST;
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.WINDOW;
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.WINDOW_ID;
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.settingsList;
+import static org.junit.Assert.*;
+
+/** Decodes the output of {@link BinaryTreeEncoder} as a client would and checks what it holds. */
+public class BinaryTreeEncoderTest {
+    private final CaptureContext context = CaptureContext.forDensity(2.625f);
+
+    @Test
+    public void writesHeaderAndStringTable() {
+        CapturedTree tree = settingsList();
+        Decoded decoded = Decoded.decode(BinaryTreeEncoder.encode(tree, context));
+
+        assertEquals(BinaryTreeEncoder.FORMAT_VERSION, decoded.formatVersion);
+        assertEquals(tree.version(), decoded.treeVersion);
+        assertEquals(context.dpScaleFactor(), decoded.dpScaleFactor, 0f);
+        // Every string is written once, however often it is used.
+        assertEquals(decoded.strings.size(), new HashSet<>(decoded.strings).size());
+        assertTrue(decoded.strings.contains("TextView"));
+        assertTrue(decoded.strings.contains("Grüße 😀"));
+        assertEquals(3, decoded.nodes.size());
+    }
+
+    @Test
+    public void roundTripsWindowFields() {
+        Decoded decoded = Decoded.decode(BinaryTreeEncoder.encode(settingsList(), context));
+        Node window = decoded.nodes.get(0);
+
+        assertTrue(window.isWindow);
+        assertEquals(0, window.depth);
+        assertEquals(WINDOW, window.id);
+        assertEquals(WINDOW_ID, window.signed(BinaryTreeEncoder.FIELD_WINDOW_ID));
+        assertEquals("Settings", decoded.string(window, BinaryTreeEncoder.FIELD_TITLE));
+        assertArrayEquals(
+                new long[] {-10, 0, 1090, 2400}, window.signedList(BinaryTreeEncoder.FIELD_BOUNDS));
+        assertFalse(window.has(BinaryTreeEncoder.FIELD_ROLE));
+    }
+
+    @Test
+    public void roundTripsNodeFields() {
+        Decoded decoded = Decoded.decode(BinaryTreeEncoder.encode(settingsList(), context));
+        Node list = decoded.nodes.get(1);
+        Node item = decoded.nodes.get(2);
+
+        assertFalse(list.isWindow);
+        assertEquals(1, list.depth);
+        assertEquals(LIST, list.id);
+        assertEquals("RecyclerView", decoded.string(list, BinaryTreeEncoder.FIELD_ROLE));
+        assertEquals(Integer.MIN_VALUE, list.signed(BinaryTreeEncoder.FIELD_HASH_CODE));
+        assertArrayEquals(
+                new long[] {4, 2}, list.signedList(BinaryTreeEncoder.FIELD_COLLECTION_INFO));
+        assertFalse(list.has(BinaryTreeEncoder.FIELD_TEXT));
+
+        assertEquals(2, item.depth);
+        assertEquals(ITEM, item.id);
+        assertEquals("TextView", decoded.string(item, BinaryTreeEncoder.FIELD_ROLE));
+        assertEquals("Grüße 😀", decoded.string(item, BinaryTreeEncoder.FIELD_TEXT));
+        assertEquals(
+                "com.example:id/title", decoded.string(item, BinaryTreeEncoder.FIELD_RESOURCE_ID));
+        assertEquals(123456789, item.signed(BinaryTreeEncoder.FIELD_HASH_CODE));
+        assertEquals(-42, item.signed(BinaryTreeEncoder.FIELD_LABELED_BY_ID));
+        assertEquals(
+                NodeSnapshot.PROPERTY_CLICKABLE | NodeSnapshot.PROPERTY_ENABLED | 1 << 31,
+                (int) item.unsigned(BinaryTreeEncoder.FIELD_PROPERTIES));
+        assertEquals(NodeSnapshot.ACTION_CLICK, item.unsigned(BinaryTreeEncoder.FIELD_ACTIONS));
+        assertEquals(
+                Arrays.asList("Archive", "TextView"),
+                decoded.strings(item, BinaryTreeEncoder.FIELD_CUSTOM_ACTIONS));
+        assertArrayEquals(
+                new long[] {1, 0}, item.signedList(BinaryTreeEncoder.FIELD_COLLECTION_ITEM_INFO));
+        assertArrayEquals(
+                new long[] {-5, 300, 200, 100}, item.signedList(BinaryTreeEncoder.FIELD_BOUNDS));
+    }
+
+    /** A node as decoded, with the raw values of its fields. */
+    private static final class Node {
+        boolean isWindow;
+        int depth;
+        long id;
+        final Map<Integer, Long> values = new HashMap<>();
+        final Map<Integer, long[]> lists = new HashMap<>();
+
+        boolean has(int field) {
+            return values.containsKey(field) || lists.containsKey(field);
+        }
+
+        long unsigned(int field) {
+            Long value = values.get(field);
+            return value == null ? 0 : value;
+        }
+
+        int signed(int field) {
+            return unzigzag(unsigned(field));
+        }
+
+        long[] signedList(int field) {
+            long[] raw = lists.get(field);
+            assertNotNull("missing field " + field, raw);
+            long[] decoded = new long[raw.length];
+            for (int i = 0; i < raw.length; i++) {
+                decoded[i] = unzigzag(raw[i]);
+            }
+            return decoded;
+        }
+    }
+
+    /** A capture decoded from the binary form, following the layout in the encoder's docs. */
+    private static final class Decoded {
+        int formatVersion;
+        long treeVersion;
+        float dpScaleFactor;
+        final List<String> strings = new ArrayList<>();
+        final List<Node> nodes = new ArrayList<>();
+
+        private final byte[] bytes;
+        private int position = 0;
+
+        private Decoded(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        static Decoded decode(byte[] bytes) {
+            Decoded decoded = new Decoded(bytes);
+            decoded.read();
+            return decoded;
+        }
+
+        String string(Node node, int field) {
+            assertTrue("missing field " + field, node.values.containsKey(field));
+            return strings.get((int) node.unsigned(field));
+        }
+
+        List<String> strings(Node node, int field) {
+            List<String> values = new ArrayList<>();
+            for (long index : node.lists.get(field)) {
+                values.add(strings.get((int) index));
+            }
+            return values;
+        }
+
+        private void read() {
+            assertArrayEquals(
+                    BinaryTreeEncoder.MAGIC,
+                    Arrays.copyOfRange(bytes, 0, BinaryTreeEncoder.MAGIC.length));
+            position = BinaryTreeEncoder.MAGIC.length;
+            formatVersion = (int) varint();
+            treeVersion = varint();
+            int bits = (bytes[position] & 0xff) << 24
+                    | (bytes[position + 1] & 0xff) << 16
+                    | (bytes[position + 2] & 0xff) << 8
+                    | (bytes[position + 3] & 0xff);
+            position += 4;
+            dpScaleFactor = Float.intBitsToFloat(bits);
+            long stringCount = varint();
+            for (long i = 0; i < stringCount; i++) {
+                int length = (int) varint();
+                strings.add(new String(bytes, position, length, StandardCharsets.UTF_8));
+                position += length;
+            }
+            long nodeCount = varint();
+            for (long i = 0; i < nodeCount; i++) {
+                nodes.add(node());
+            }
+            assertEquals("trailing bytes", bytes.length, position);
+        }
+
+        private Node node() {
+            Node node = new Node();
+            long header = varint();
+            node.isWindow = (header & 1) != 0;
+            node.depth = (int) (header >>> 1);
+            node.id = varint();
+            for (long tag = varint(); tag != 0; tag = varint()) {
+                int field = (int) (tag >>> 1);
+                if ((tag & 1) == 0) {
+                    node.values.put(field, varint());
+                } else {
+                    long[] list = new long[(int) varint()];
+                    for (int i = 0; i < list.length; i++) {
+                        list[i] = varint();
+                    }
+                    node.lists.put(field, list);
+                }
+            }
+            return node;
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    private static int unzigzag(long value) {
+        int n = (int) value;
+        return (n >>> 1) ^ -(n & 1);
+    }
+}
@@ -0,0 +1,143 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.ITEM;
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.LIST;
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.WINDOW;
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.WINDOW_ID;
+import static com.jwlilly.accessibilityinspector.capture.TestTrees.settingsList;
+import static org.junit.Assert.*;
+
+/** Reads the output of {@link ColumnarTreeEncoder} back as a client would. */
+public class ColumnarTreeEncoderTest {
+    private final CaptureContext context = CaptureContext.forDensity(2);
+
+    @Test
+    public void writesHeader() throws Exception {
+        CapturedTree tree = settingsList();
+        JSONObject capture = new JSONObject(ColumnarTreeEncoder.encode(tree, context));
+
+        assertEquals("columnar", capture.getString("format"));
+        assertEquals(tree.version(), capture.getLong("version"));
+        assertEquals(3, capture.getInt("count"));
+        assertEquals(0.5, capture.getDouble("dpScaleFactor"), 0);
+    }
+
+    @Test
+    public void writesEachStringOnce() throws Exception {
+        JSONObject capture = new JSONObject(ColumnarTreeEncoder.encode(settingsList(), context));
+        List<String> strings = strings(capture);
+
+        assertEquals(
+                Arrays.asList(
+                        "Window",
+                        "Settings",
+                        "RecyclerView",
+                        "TextView",
+                        "com.example:id/title",
+                        "Grüße 😀",
+                        "Archive"),
+                strings);
+    }
+
+    @Test
+    public void writesOneRowPerNodeInPreOrder() throws Exception {
+        JSONObject capture = new JSONObject(ColumnarTreeEncoder.encode(settingsList(), context));
+        List<String> strings = strings(capture);
+        JSONObject columns = capture.getJSONObject("columns");
+
+        assertEquals(WINDOW, columns.getJSONArray("id").getLong(0));
+        assertEquals(LIST, columns.getJSONArray("id").getLong(1));
+        assertEquals(ITEM, columns.getJSONArray("id").getLong(2));
+        assertColumn(columns, "parent", -1, 0, 1);
+        assertColumn(columns, "depth", 0, 1, 2);
+        assertColumn(columns, "windowId", WINDOW_ID, WINDOW_ID, WINDOW_ID);
+        assertColumn(columns, "hashCode", 0, Integer.MIN_VALUE, 123456789);
+        assertColumn(columns, "labeledById", 0, 0, -42);
+        assertColumn(columns, "actions", 0, 0, NodeSnapshot.ACTION_CLICK);
+        assertColumn(
+                columns,
+                "properties",
+                0,
+                0,
+                NodeSnapshot.PROPERTY_CLICKABLE | NodeSnapshot.PROPERTY_ENABLED | 1 << 31);
+        assertColumn(columns, "bounds", -10, 0, 1080, 2400, 0, 0, 1080, 2000, -5, 300, 195, 400);
+        assertColumn(
+                columns,
+                "collectionRowCount",
+                NodeSnapshot.NO_COLLECTION,
+                4,
+                NodeSnapshot.NO_COLLECTION);
+        assertColumn(
+                columns,
+                "collectionItemColumnIndex",
+                NodeSnapshot.NO_COLLECTION,
+                NodeSnapshot.NO_COLLECTION,
+                0);
+
+        assertEquals("Window", string(strings, columns, "role", 0));
+        assertEquals("RecyclerView", string(strings, columns, "role", 1));
+        assertEquals("TextView", string(strings, columns, "role", 2));
+        assertEquals("Settings", string(strings, columns, "title", 0));
+        assertNull(string(strings, columns, "title", 2));
+        assertNull(string(strings, columns, "text", 0));
+        assertNull(string(strings, columns, "text", 1));
+        assertEquals("Grüße 😀", string(strings, columns, "text", 2));
+        assertNull(string(strings, columns, "resourceId", 1));
+        assertEquals("com.example:id/title", string(strings, columns, "resourceId", 2));
+    }
+
+    @Test
+    public void writesListColumnsWithOffsets() throws Exception {
+        JSONObject capture = new JSONObject(ColumnarTreeEncoder.encode(settingsList(), context));
+        List<String> strings = strings(capture);
+        JSONObject columns = capture.getJSONObject("columns");
+        JSONObject customActions = columns.getJSONObject("customActions");
+        JSONArray values = customActions.getJSONArray("values");
+        JSONArray offsets = customActions.getJSONArray("offsets");
+
+        assertEquals(4, offsets.length());
+        assertEquals(0, offsets.getInt(0));
+        assertEquals(0, offsets.getInt(1));
+        assertEquals(0, offsets.getInt(2));
+        assertEquals(2, offsets.getInt(3));
+        assertEquals("Archive", strings.get(values.getInt(0)));
+        assertEquals("TextView", strings.get(values.getInt(1)));
+        assertEquals(0, columns.getJSONObject("links").getJSONArray("values").length());
+    }
+
+    /** Splits the string table at its offsets, which count UTF-16 code units. */
+    private static List<String> strings(JSONObject capture) throws Exception {
+        String blob = capture.getString("strings");
+        JSONArray offsets = capture.getJSONArray("stringOffsets");
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i + 1 < offsets.length(); i++) {
+            strings.add(blob.substring(offsets.getInt(i), offsets.getInt(i + 1)));
+        }
+        assertEquals(blob.length(), offsets.getInt(offsets.length() - 1));
+        return strings;
+    }
+
+    private static String string(List<String> strings, JSONObject columns, String name, int row)
+            throws Exception {
+        int index = columns.getJSONArray(name).getInt(row);
+        return index == -1 ? null : strings.get(index);
+    }
+
+    private static void assertColumn(JSONObject columns, String name, int... expected)
+            throws Exception {
+        JSONArray column = columns.getJSONArray(name);
+        int[] actual = new int[column.length()];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = column.getInt(i);
+        }
+        assertArrayEquals(name, expected, actual);
+    }
+}
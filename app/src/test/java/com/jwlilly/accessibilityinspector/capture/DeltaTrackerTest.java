@@ -0,0 +1,156 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/** Checks the operations {@link DeltaTracker} sends to turn one capture into the next. */
+public class DeltaTrackerTest {
+    private static final int WINDOW_ID = 7;
+    private static final long WINDOW = 1;
+    private static final long FIRST = 2;
+    private static final long SECOND = 3;
+    private static final long THIRD = 4;
+
+    private final CaptureContext context = CaptureContext.forDensity(2);
+
+    @Test
+    public void diffOfEqualTreesIsEmpty() throws Exception {
+        CapturedTree base = tree(node(FIRST, WINDOW, 0, "first"), node(SECOND, WINDOW, 1, "second"));
+        CapturedTree next = tree(node(FIRST, WINDOW, 0, "first"), node(SECOND, WINDOW, 1, "second"));
+        assertEquals(0, DeltaTracker.diff(base, next, context).length());
+    }
+
+    @Test
+    public void diffAddsRemovesAndUpdatesNodes() throws Exception {
+        CapturedTree base = tree(node(FIRST, WINDOW, 0, "first"), node(SECOND, WINDOW, 1, "second"));
+        CapturedTree next =
+                tree(node(SECOND, WINDOW, 0, "changed"), node(THIRD, SECOND, 0, "third"));
+
+        JSONArray ops = DeltaTracker.diff(base, next, context);
+
+        assertEquals(3, ops.length());
+        JSONObject remove = ops.getJSONObject(0);
+        assertEquals("remove", remove.getString("op"));
+        assertEquals(FIRST, remove.getLong("id"));
+
+        JSONObject update = ops.getJSONObject(1);
+        assertEquals("update", update.getString("op"));
+        assertEquals(SECOND, update.getLong("id"));
+        assertEquals(WINDOW, update.getLong("parent"));
+        assertEquals(0, update.getInt("index"));
+        JSONObject updated = update.getJSONObject("node");
+        assertEquals(SECOND, updated.getLong("id"));
+        assertEquals("changed", updated.getJSONObject("metadata").getString("text"));
+
+        JSONObject add = ops.getJSONObject(2);
+        assertEquals("add", add.getString("op"));
+        assertEquals(THIRD, add.getLong("id"));
+        assertEquals(SECOND, add.getLong("parent"));
+        assertEquals(0, add.getInt("index"));
+        JSONObject added = add.getJSONObject("node");
+        assertEquals("third", added.getJSONObject("metadata").getString("text"));
+        assertEquals("50.00", added.getJSONObject("metadata").getString("scaledWidth"));
+    }
+
+    @Test
+    public void diffOfMovedNodeLeavesOutUnchangedProperties() throws Exception {
+        CapturedTree base = tree(node(FIRST, WINDOW, 0, "first"), node(SECOND, WINDOW, 1, "second"));
+        CapturedTree next = tree(node(SECOND, WINDOW, 0, "second"), node(FIRST, WINDOW, 1, "first"));
+
+        JSONArray ops = DeltaTracker.diff(base, next, context);
+
+        assertEquals(2, ops.length());
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.getJSONObject(i);
+            assertEquals("update", op.getString("op"));
+            assertFalse(op.has("node"));
+        }
+        assertEquals(SECOND, ops.getJSONObject(0).getLong("id"));
+        assertEquals(0, ops.getJSONObject(0).getInt("index"));
+        assertEquals(FIRST, ops.getJSONObject(1).getLong("id"));
+        assertEquals(1, ops.getJSONObject(1).getInt("index"));
+    }
+
+    @Test
+    public void captureSendsOpsAgainstTheLastVersionSent() throws Exception {
+        DeltaTracker tracker = new DeltaTracker();
+        CapturedTree first = tree(node(FIRST, WINDOW, 0, "first"));
+        CapturedTree second = tree(node(FIRST, WINDOW, 0, "changed"));
+
+        JSONObject full = tracker.capture("client", 0, first, context).getJSONObject("delta");
+        assertTrue(full.getBoolean("full"));
+        assertEquals(first.version(), full.getLong("version"));
+
+        JSONObject delta =
+                tracker.capture("client", first.version(), second, context).getJSONObject("delta");
+        assertFalse(delta.has("full"));
+        assertEquals(first.version(), delta.getLong("base"));
+        assertEquals(second.version(), delta.getLong("version"));
+        assertEquals(1, delta.getJSONArray("ops").length());
+    }
+
+    @Test
+    public void captureSendsFullTreeWhenBaseVersionDoesNotMatch() throws Exception {
+        DeltaTracker tracker = new DeltaTracker();
+        CapturedTree first = tree(node(FIRST, WINDOW, 0, "first"));
+        CapturedTree second = tree(node(FIRST, WINDOW, 0, "changed"));
+        tracker.capture("client", 0, first, context);
+
+        JSONObject delta =
+                tracker.capture("client", first.version() - 1, second, context)
+                        .getJSONObject("delta");
+
+        assertTrue(delta.getBoolean("full"));
+        assertFalse(delta.has("ops"));
+        JSONObject window = delta.getJSONObject("tree").getJSONArray("children").getJSONObject(0);
+        assertEquals(WINDOW, window.getLong("id"));
+        JSONObject node = window.getJSONArray("children").getJSONObject(0);
+        assertEquals("changed", node.getJSONObject("metadata").getString("text"));
+    }
+
+    @Test
+    public void captureSendsFullTreeAfterForget() throws Exception {
+        DeltaTracker tracker = new DeltaTracker();
+        CapturedTree first = tree(node(FIRST, WINDOW, 0, "first"));
+        tracker.capture("client", 0, first, context);
+        tracker.forget("client");
+
+        JSONObject delta =
+                tracker.capture("client", first.version(), first, context).getJSONObject("delta");
+
+        assertTrue(delta.getBoolean("full"));
+    }
+
+    /** Returns a tree of one window holding {@code nodes}, which are in pre-order. */
+    private static CapturedTree tree(CapturedNode... nodes) {
+        CapturedNode window = CapturedNode.window(WINDOW, 0, snapshot(0, null), "Window");
+        CapturedNode[] all = new CapturedNode[nodes.length + 1];
+        all[0] = window;
+        System.arraycopy(nodes, 0, all, 1, nodes.length);
+        return CapturedTree.of(Arrays.asList(all));
+    }
+
+    private static CapturedNode node(long id, long parentId, int index, String text) {
+        int depth = parentId == WINDOW ? 1 : 2;
+        return CapturedNode.node(id, parentId, index, depth, snapshot((int) id, text));
+    }
+
+    private static NodeSnapshot snapshot(int hashCode, String text) {
+        return NodeSnapshot.builder()
+                .setHashCodeValue(hashCode)
+                .setWindowId(WINDOW_ID)
+                .setRole("TextView")
+                .setText(text)
+                .setLeft(0)
+                .setTop(0)
+                .setRight(100)
+                .setBottom(40)
+                .setProperties(NodeSnapshot.PROPERTY_VISIBLE | NodeSnapshot.PROPERTY_ENABLED)
+                .build();
+    }
+}
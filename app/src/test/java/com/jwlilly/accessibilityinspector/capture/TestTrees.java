@@ -0,0 +1,65 @@
+package com.jwlilly.accessibilityinspector.capture;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+
+/** Captures shared by the encoder tests. */
+final class TestTrees {
+    static final int WINDOW_ID = -3;
+    static final long WINDOW = 1;
+    static final long LIST = 1L << 40;
+    static final long ITEM = (1L << 53) - 1;
+
+    private TestTrees() {}
+
+    /**
+     * Returns a window holding a two-column list with one item. Ids go up to the largest a
+     * JavaScript number holds exactly, and the hash codes, bounds, label id and properties include
+     * negative values.
+     */
+    static CapturedTree settingsList() {
+        NodeSnapshot windowRoot = NodeSnapshot.builder()
+                .setHashCodeValue(1)
+                .setWindowId(WINDOW_ID)
+                .setRole("FrameLayout")
+                .setLeft(-10)
+                .setTop(0)
+                .setRight(1080)
+                .setBottom(2400)
+                .build();
+        NodeSnapshot list = NodeSnapshot.builder()
+                .setHashCodeValue(Integer.MIN_VALUE)
+                .setWindowId(WINDOW_ID)
+                .setRole("RecyclerView")
+                .setLeft(0)
+                .setTop(0)
+                .setRight(1080)
+                .setBottom(2000)
+                .setCollectionRowCount(4)
+                .setCollectionColumnCount(2)
+                .build();
+        NodeSnapshot item = NodeSnapshot.builder()
+                .setHashCodeValue(123456789)
+                .setWindowId(WINDOW_ID)
+                .setRole("TextView")
+                .setText("Grüße 😀")
+                .setViewIdResourceName("com.example:id/title")
+                .setLabeledById(-42)
+                .setLeft(-5)
+                .setTop(300)
+                .setRight(195)
+                .setBottom(400)
+                .setProperties(
+                        NodeSnapshot.PROPERTY_CLICKABLE | NodeSnapshot.PROPERTY_ENABLED | 1 << 31)
+                .setActions(NodeSnapshot.ACTION_CLICK)
+                .setCustomActions(ImmutableList.of("Archive", "TextView"))
+                .setCollectionItemRowIndex(1)
+                .setCollectionItemColumnIndex(0)
+                .build();
+        return CapturedTree.of(Arrays.asList(
+                CapturedNode.window(WINDOW, 0, windowRoot, "Settings"),
+                CapturedNode.node(LIST, WINDOW, 0, 1, list),
+                CapturedNode.node(ITEM, LIST, 0, 2, item)));
+    }
+}
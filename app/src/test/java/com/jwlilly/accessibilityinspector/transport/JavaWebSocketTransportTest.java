@@ -0,0 +1,203 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import com.jwlilly.accessibilityinspector.ClientSocket;
+import com.jwlilly.accessibilityinspector.Payload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+/** Checks the permessage-deflate negotiation of {@link JavaWebSocketTransport} on the wire. */
+public class JavaWebSocketTransportTest {
+    private static final long TIMEOUT_S = 10;
+    private static final byte[] SYNC_FLUSH_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    private final BlockingQueue<ClientSocket> opened = new LinkedBlockingQueue<>();
+    private int port;
+    private JavaWebSocketTransport transport;
+    private Socket socket;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        transport = new JavaWebSocketTransport(1);
+        transport.start(port, new InspectorTransport.Listener() {
+            @Override
+            public String onOpen(ClientSocket socket) {
+                opened.add(socket);
+                return "client";
+            }
+
+            @Override
+            public void onMessage(String clientId, String message) {}
+
+            @Override
+            public void onClose(String clientId) {}
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (socket != null) {
+            socket.close();
+        }
+        transport.stop();
+    }
+
+    @Test
+    public void answersWithContextTakeover() throws Exception {
+        String extensions = handshake("permessage-deflate; client_max_window_bits");
+        assertEquals("permessage-deflate", extensions);
+    }
+
+    @Test
+    public void honorsRequestToResetServerContext() throws Exception {
+        String extensions = handshake("permessage-deflate; server_no_context_takeover");
+        assertEquals("permessage-deflate; server_no_context_takeover", extensions);
+    }
+
+    @Test
+    public void servesUncompressedWithoutOffer() throws Exception {
+        assertNull(handshake(null));
+    }
+
+    @Test
+    public void keepsContextAcrossMessages() throws Exception {
+        handshake("permessage-deflate");
+        ClientSocket client = opened.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        assertNotNull("no connection", client);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("{\"role\":\"TextView\",\"text\":\"Item ").append(i * 7919).append("\"}");
+        }
+        Payload payload = Payload.utf8Text(text.toString().getBytes(StandardCharsets.UTF_8));
+        client.send(payload);
+        client.send(payload);
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] first = readCompressedTextFrame(in);
+        byte[] second = readCompressedTextFrame(in);
+        // The second message refers back to the first instead of repeating it.
+        assertTrue(second.length * 4 < first.length);
+
+        Inflater inflater = new Inflater(true);
+        assertEquals(text.toString(), inflate(inflater, first));
+        assertEquals(text.toString(), inflate(inflater, second));
+        inflater.end();
+    }
+
+    /**
+     * Opens a connection, offering {@code offer} as the extensions, and returns the extensions the
+     * server answered with, or null if it answered with none.
+     */
+    private String handshake(String offer) throws Exception {
+        socket = connect();
+        StringBuilder request = new StringBuilder()
+                .append("GET / HTTP/1.1\r\n")
+                .append("Host: 127.0.0.1:").append(port).append("\r\n")
+                .append("Upgrade: websocket\r\n")
+                .append("Connection: Upgrade\r\n")
+                .append("Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n")
+                .append("Sec-WebSocket-Version: 13\r\n");
+        if (offer != null) {
+            request.append("Sec-WebSocket-Extensions: ").append(offer).append("\r\n");
+        }
+        request.append("\r\n");
+        OutputStream out = socket.getOutputStream();
+        out.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        String[] lines = readHeaders(socket).split("\r\n");
+        assertTrue(lines[0], lines[0].startsWith("HTTP/1.1 101"));
+        String extensions = null;
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon > 0
+                    && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Extensions")) {
+                extensions = line.substring(colon + 1).trim();
+            }
+        }
+        return extensions;
+    }
+
+    /** Connects to the transport, which binds its port on its own thread. */
+    private Socket connect() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (true) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_S));
+                return socket;
+            } catch (ConnectException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static String readHeaders(Socket socket) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = socket.getInputStream().read();
+            if (b == -1) {
+                throw new IOException("connection closed during handshake");
+            }
+            headers.write(b);
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return new String(headers.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    /** Reads one unmasked, unfragmented frame and checks that it is a compressed text frame. */
+    private static byte[] readCompressedTextFrame(DataInputStream in) throws IOException {
+        int first = in.readUnsignedByte();
+        assertEquals("FIN", 0x80, first & 0x80);
+        assertEquals("RSV1", 0x40, first & 0x40);
+        assertEquals("opcode", 1, first & 0x0f);
+        int second = in.readUnsignedByte();
+        assertEquals("masked", 0, second & 0x80);
+        long length = second & 0x7f;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private static String inflate(Inflater inflater, byte[] message) throws Exception {
+        byte[] input = Arrays.copyOf(message, message.length + SYNC_FLUSH_TAIL.length);
+        System.arraycopy(SYNC_FLUSH_TAIL, 0, input, message.length, SYNC_FLUSH_TAIL.length);
+        inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = inflater.inflate(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,194 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import com.jwlilly.accessibilityinspector.ClientRegistry;
+import com.jwlilly.accessibilityinspector.ClientSocket;
+import com.jwlilly.accessibilityinspector.Payload;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/** Runs {@link ReverseTransport} against a stand-in host server on the loopback interface. */
+public class ReverseTransportTest {
+    private static final long TIMEOUT_S = 10;
+
+    private final ClientRegistry clients = new ClientRegistry();
+    private final AtomicInteger sessionsOpened = new AtomicInteger();
+    private final BlockingQueue<String> sessionsClosed = new LinkedBlockingQueue<>();
+    private volatile ClientSocket session;
+    private final BlockingQueue<String> commands = new LinkedBlockingQueue<>();
+    private volatile String clientId;
+    private int port;
+    private StandInServer server;
+    private ReverseTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = StandInServer.start(port);
+        JSONObject device = new JSONObject();
+        device.put("id", "stand-in");
+        device.put("model", "test");
+        transport = new ReverseTransport(URI.create("ws://127.0.0.1:" + port + "/"), device, 50, 200);
+        transport.start(0, new InspectorTransport.Listener() {
+            @Override
+            public String onOpen(ClientSocket socket) {
+                sessionsOpened.incrementAndGet();
+                session = socket;
+                clientId = clients.add(socket);
+                return clientId;
+            }
+
+            @Override
+            public void onMessage(String clientId, String message) {
+                commands.add(message);
+            }
+
+            @Override
+            public void onClose(String clientId) {
+                clients.remove(clientId);
+                sessionsClosed.add(clientId);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.stop();
+        server.stop(1000);
+    }
+
+    @Test
+    public void identifiesDeviceAndReceivesCommands() throws Exception {
+        JSONObject hello = new JSONObject(server.next());
+        assertEquals("hello", hello.getString("message"));
+        assertFalse(hello.getBoolean("resumed"));
+        assertEquals("stand-in", hello.getJSONObject("device").getString("id"));
+
+        server.broadcast("{\"message\":\"ping\"}");
+        assertEquals("{\"message\":\"ping\"}", commands.poll(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void reconnectsAndResumesSession() throws Exception {
+        JSONObject first = new JSONObject(server.next());
+        server.stop(1000);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+        while (transport.isConnected()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        clients.send(clientId, Payload.text("sent while away"));
+        server = StandInServer.start(port);
+
+        JSONObject second = new JSONObject(server.next());
+        assertTrue(second.getBoolean("resumed"));
+        assertEquals(first.getString("session"), second.getString("session"));
+        assertEquals("sent while away", server.next());
+        assertEquals(1, sessionsOpened.get());
+    }
+
+    @Test
+    public void reportsSessionClosedByTheService() throws Exception {
+        server.next();
+        ClientSocket first = session;
+        String firstClientId = clientId;
+        first.close();
+        assertEquals(firstClientId, sessionsClosed.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        // The transport reconnects with a new session; closing the old one again reports nothing.
+        first.close();
+        assertNotEquals(firstClientId, sessionsClosed.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void deliversSustainedSendsInOrder() throws Exception {
+        server.next();
+        StringBuilder filler = new StringBuilder();
+        while (filler.length() < 1024) {
+            filler.append("0123456789abcdef");
+        }
+        int count = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            clients.send(clientId, Payload.text(i + ":" + filler));
+        }
+        for (int i = 0; i < count; i++) {
+            String message = server.next();
+            assertEquals(i + ":", message.substring(0, message.indexOf(':') + 1));
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsedMs + " ms", elapsedMs < TimeUnit.SECONDS.toMillis(TIMEOUT_S));
+        assertTrue(clients.contains(clientId));
+    }
+
+    @Test
+    public void backoffDoublesUpToTheCap() {
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long full = Math.min(100L << Math.min(attempt, 30), 5000);
+            long delay = ReverseTransport.backoffMs(attempt, 100, 5000);
+            assertTrue(delay <= full);
+            assertTrue(delay >= full / 2);
+        }
+    }
+
+    /** A host that records every text message it receives. */
+    private static final class StandInServer extends WebSocketServer {
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private StandInServer(int port) {
+            super(new InetSocketAddress("127.0.0.1", port));
+            setReuseAddr(true);
+        }
+
+        static StandInServer start(int port) throws InterruptedException {
+            StandInServer server = new StandInServer(port);
+            server.start();
+            assertTrue(server.started.await(TIMEOUT_S, TimeUnit.SECONDS));
+            return server;
+        }
+
+        String next() throws InterruptedException {
+            String message = messages.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            assertNotNull("no message from the device", message);
+            return message;
+        }
+
+        @Override
+        public void onOpen(WebSocket connection, ClientHandshake handshake) {}
+
+        @Override
+        public void onClose(WebSocket connection, int code, String reason, boolean remote) {}
+
+        @Override
+        public void onMessage(WebSocket connection, String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onError(WebSocket connection, Exception e) {}
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+}
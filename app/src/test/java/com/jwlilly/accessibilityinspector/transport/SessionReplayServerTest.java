@@ -0,0 +1,148 @@
+package com.jwlilly.accessibilityinspector.transport;
+
+import com.jwlilly.accessibilityinspector.Payload;
+import com.jwlilly.accessibilityinspector.SessionRecorder;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/** Replays a session recorded by {@link SessionRecorder} with {@link SessionReplayServer}. */
+public class SessionReplayServerTest {
+    private static final long TIMEOUT_S = 10;
+    private static final long PAUSE_MS = 300;
+
+    private File file;
+    private int port;
+    private SessionReplayServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("session", ".a11s");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.received("{\"message\":\"capture\"}");
+        recorder.sent(Payload.text("{\"first\":true}"));
+        recorder.sent(Payload.binary(new byte[] {1, 2, 3}));
+        Thread.sleep(PAUSE_MS);
+        recorder.sent(Payload.text("{\"last\":true}"));
+        CountDownLatch stopped = new CountDownLatch(1);
+        AtomicReference<SessionRecorder.Result> result = new AtomicReference<>();
+        recorder.stop(finished -> {
+            result.set(finished);
+            stopped.countDown();
+        });
+        assertTrue(stopped.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertNull(result.get().failure);
+        assertEquals(4, result.get().records);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void loadsEveryRecordInOrder() throws Exception {
+        List<SessionReplayServer.Record> records = SessionReplayServer.load(file);
+        assertEquals(4, records.size());
+        assertEquals(SessionRecorder.TYPE_COMMAND, records.get(0).type);
+        assertEquals(SessionRecorder.TYPE_TEXT, records.get(1).type);
+        assertEquals(SessionRecorder.TYPE_BINARY, records.get(2).type);
+        assertArrayEquals(new byte[] {1, 2, 3}, records.get(2).bytes);
+        long pauseMicros = records.get(3).timeMicros - records.get(2).timeMicros;
+        assertTrue(pauseMicros >= TimeUnit.MILLISECONDS.toMicros(PAUSE_MS));
+    }
+
+    @Test
+    public void replaysAtRecordedSpeed() throws Exception {
+        server = new SessionReplayServer(SessionReplayServer.load(file), 1);
+        server.start(port);
+        Client client = Client.connect(port);
+        assertEquals("{\"first\":true}", client.next());
+        long start = System.nanoTime();
+        assertEquals("binary:3", client.next());
+        assertEquals("{\"last\":true}", client.next());
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsedMs + " ms", elapsedMs >= PAUSE_MS - 50);
+        assertEquals(3, new JSONObject(client.next()).getInt("messages"));
+        client.closeBlocking();
+    }
+
+    @Test
+    public void replaysAsFastAsPossible() throws Exception {
+        server = new SessionReplayServer(SessionReplayServer.load(file), 0);
+        server.start(port);
+        Client client = Client.connect(port);
+        assertEquals("{\"first\":true}", client.next());
+        assertEquals("binary:3", client.next());
+        assertEquals("{\"last\":true}", client.next());
+        JSONObject end = new JSONObject(client.next());
+        assertEquals("end", end.getString("replay"));
+        assertTrue(end.getLong("elapsedMs") < PAUSE_MS);
+        client.send("{\"message\":\"ping\"}");
+        assertEquals("{\"message\":\"pong\"}", client.next());
+        client.closeBlocking();
+    }
+
+    /** A client that collects what it receives, with binary messages as their length. */
+    private static final class Client extends WebSocketClient {
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        private Client(int port) {
+            super(URI.create("ws://127.0.0.1:" + port + "/"));
+        }
+
+        static Client connect(int port) throws InterruptedException {
+            Client client = new Client(port);
+            assertTrue(client.connectBlocking(TIMEOUT_S, TimeUnit.SECONDS));
+            return client;
+        }
+
+        String next() throws InterruptedException {
+            String message = messages.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            assertNotNull("nothing replayed", message);
+            return message;
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {}
+
+        @Override
+        public void onMessage(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onMessage(ByteBuffer bytes) {
+            messages.add("binary:" + bytes.remaining());
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {}
+
+        @Override
+        public void onError(Exception e) {}
+    }
+}